@@ -17,6 +17,7 @@ import javafx.stage.WindowEvent;
 import oatboat.controller.prefs.UserPreferences;
 import oatboat.model.database.DatabaseUtils;
 import oatboat.model.database.Database;
+import oatboat.model.logic.FDCService;
 import oatboat.view.MainController;
 
 public class Main extends Application {
@@ -25,6 +26,7 @@ public class Main extends Application {
 	private MainController mainSceneController;
 	private Database database;
 	private UserPreferences prefs;
+	private FDCService fdcService = new FDCService();
 
 	@Override
 	public void start(Stage primaryStage) {
@@ -75,6 +77,9 @@ public class Main extends Application {
 		mainStage.setOnCloseRequest(event -> saveDatabaseChangesOnExit(event));
 		mainStage.show();
 		mainSceneController.postDisplayInitialisation();
+
+		// begin loading FDC data for the search window, without delaying startup
+		fdcService.warmUp(prefs.getFDCLowMemory());
 	}
 
 	public Database getDatabase() {
@@ -85,6 +90,10 @@ public class Main extends Application {
 		return prefs;
 	}
 
+	public FDCService getFDCService() {
+		return fdcService;
+	}
+
 	/**
 	 * determines the appearance of numbers, specifically the representation of the
 	 * decimal separator. link the arg to the value from the decimal format setting
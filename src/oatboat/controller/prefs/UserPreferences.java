@@ -8,6 +8,7 @@ public class UserPreferences {
 	private String decimal = "decimalFormatComboBoxIndex";
 	private String tab = "tabSelectedOnStartup";
 	private String dbFile = "localDatabaseFilename";
+	private String fdcLowMemory = "fdcLowMemorySearch";
 //	private String dbLocation = localDatabaseDirectoryLocation";
 	
 	public UserPreferences() {
@@ -40,4 +41,12 @@ public class UserPreferences {
 		return prefs.get(dbFile, "default.db");
 	}
 	
+	public void setFDCLowMemory(boolean lowMemory) {
+		prefs.putBoolean(fdcLowMemory, lowMemory);
+	}
+	
+	public boolean getFDCLowMemory() {
+		return prefs.getBoolean(fdcLowMemory, false);
+	}
+	
 }
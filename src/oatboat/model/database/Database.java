@@ -36,6 +36,7 @@ public class Database {
 	private ObservableMap<String, LabelSet> labelSets;
 	private ObservableMap<Integer, Grouping> groups;
 	private ObservableList<Consumable> consumables;
+	private DatabaseIndex index;
 
 	/**
 	 * Creates a new empty database.
@@ -46,6 +47,15 @@ public class Database {
 		labelSets = FXCollections.observableHashMap();
 		groups = FXCollections.observableHashMap();
 		consumables = FXCollections.observableArrayList();
+		index = new DatabaseIndex(ingredients, recipes, labelSets, consumables);
+	}
+
+	/**
+	 * @return the quick-find index over the records of this database, which is
+	 *         kept up to date as records are added, changed and removed
+	 */
+	public DatabaseIndex getIndex() {
+		return index;
 	}
 
 	/**
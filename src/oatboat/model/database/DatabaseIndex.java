@@ -0,0 +1,252 @@
+package oatboat.model.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javafx.beans.InvalidationListener;
+import javafx.beans.Observable;
+import javafx.collections.ListChangeListener;
+import javafx.collections.MapChangeListener;
+import javafx.collections.ObservableList;
+import javafx.collections.ObservableMap;
+import oatboat.model.database.consumable.Consumable;
+import oatboat.model.food.Ingredient;
+import oatboat.model.food.LabelSet;
+import oatboat.model.food.Recipe;
+import oatboat.model.logic.TextUtils;
+
+/**
+ * text index over the records of a {@link Database}, for quick-find: the names,
+ * label texts and additional info of ingredients, the titles of recipes, and
+ * the names of label sets and consumables.
+ * <p>
+ * each record's text is folded (see {@link TextUtils#fold(String)}) and
+ * split into words, and every word is kept in a sorted map of the records
+ * which hold it. a keyword finds the records holding a word which begins with
+ * it, found together in the sorted map.
+ * <p>
+ * the index follows the change events of the database's maps and list, and of
+ * the name properties of ingredients and consumables, so it is never rebuilt.
+ */
+public class DatabaseIndex {
+
+	private final NavigableMap<String, Set<Entry>> words = new TreeMap<String, Set<Entry>>();
+	private final Map<Object, Entry> entries = new IdentityHashMap<Object, Entry>();
+
+	/**
+	 * index the current records and follow every later change
+	 */
+	DatabaseIndex(ObservableMap<String, Ingredient> ingredients, ObservableMap<String, Recipe> recipes,
+			ObservableMap<String, LabelSet> labelSets, ObservableList<Consumable> consumables) {
+		follow(ingredients);
+		follow(recipes);
+		follow(labelSets);
+
+		consumables.forEach(this::add);
+		consumables.addListener((ListChangeListener<Consumable>) change -> {
+			while (change.next()) {
+				change.getRemoved().forEach(this::remove);
+				change.getAddedSubList().forEach(this::add);
+			}
+		});
+	}
+
+	private <K, V> void follow(ObservableMap<K, V> records) {
+		records.values().forEach(this::add);
+		records.addListener((MapChangeListener<K, V>) change -> {
+			if (change.wasRemoved())
+				remove(change.getValueRemoved());
+			if (change.wasAdded())
+				add(change.getValueAdded());
+		});
+	}
+
+	/**
+	 * find the records holding, for every keyword of the query, a word which
+	 * begins with the keyword
+	 *
+	 * @param query words typed by the user, in any case and with or without
+	 *              diacritics
+	 * @param limit the greatest number of records to return
+	 * @return matching ingredients, recipes, label sets and consumables, in the
+	 *         order of their matching words
+	 */
+	public List<Object> find(String query, int limit) {
+		List<Object> found = new ArrayList<Object>();
+		String[] keywords = split(TextUtils.fold(query));
+		if (keywords.length == 0)
+			return found;
+
+		// walk the records of the keyword held by fewest, checking the others
+		String rarest = keywords[0];
+		int fewest = holders(rarest, Integer.MAX_VALUE);
+		for (int i = 1; i < keywords.length && fewest > 0; i++) {
+			int count = holders(keywords[i], fewest);
+			if (count < fewest) {
+				rarest = keywords[i];
+				fewest = count;
+			}
+		}
+
+		Set<Entry> seen = new HashSet<Entry>();
+		for (Set<Entry> holders : prefixed(rarest).values()) {
+			for (Entry entry : holders) {
+				if (seen.add(entry) && entry.matches(keywords)) {
+					found.add(entry.record);
+					if (found.size() >= limit)
+						return found;
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return the number of records holding a word which begins with the prefix,
+	 *         counting no further than the given bound (a record holding several
+	 *         such words is counted for each)
+	 */
+	private int holders(String prefix, int bound) {
+		int count = 0;
+		for (Set<Entry> holders : prefixed(prefix).values()) {
+			count += holders.size();
+			if (count >= bound)
+				return bound;
+		}
+		return count;
+	}
+
+	// the words beginning with the given prefix, and their records
+	private NavigableMap<String, Set<Entry>> prefixed(String prefix) {
+		return words.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+	}
+
+	private void add(Object record) {
+		if (record == null || entries.containsKey(record))
+			return;
+
+		Entry entry = new Entry(record);
+		entries.put(record, entry);
+		for (Observable property : entry.properties)
+			property.addListener(entry);
+		index(entry);
+	}
+
+	private void remove(Object record) {
+		Entry entry = entries.remove(record);
+		if (entry == null)
+			return;
+
+		for (Observable property : entry.properties)
+			property.removeListener(entry);
+		unindex(entry);
+	}
+
+	private void index(Entry entry) {
+		entry.terms = split(TextUtils.fold(entry.text()));
+		for (String word : entry.terms)
+			words.computeIfAbsent(word, key -> new HashSet<Entry>()).add(entry);
+	}
+
+	private void unindex(Entry entry) {
+		for (String word : entry.terms) {
+			Set<Entry> holders = words.get(word);
+			if (holders != null && holders.remove(entry) && holders.isEmpty())
+				words.remove(word);
+		}
+	}
+
+	/**
+	 * @return the distinct words of the folded text, split at any character which
+	 *         is not a letter or digit
+	 */
+	private static String[] split(String text) {
+		Collection<String> split = new HashSet<String>();
+		int start = 0;
+		for (int end = 0; end <= text.length(); end++) {
+			if (end == text.length() || !Character.isLetterOrDigit(text.charAt(end))) {
+				if (end > start)
+					split.add(text.substring(start, end));
+				start = end + 1;
+			}
+		}
+		return split.toArray(new String[split.size()]);
+	}
+
+	// an indexed record, which is indexed again whenever one of its names changes
+	private class Entry implements InvalidationListener {
+
+		private final Object record;
+		private final List<Observable> properties;
+		private String[] terms = new String[0];
+
+		private Entry(Object record) {
+			this.record = record;
+			if (record instanceof Ingredient) {
+				Ingredient ingredient = (Ingredient) record;
+				properties = Arrays.asList(ingredient.getNameProperty(), ingredient.getLabelProperty(),
+						ingredient.getInfoProperty());
+			} else if (record instanceof Consumable) {
+				properties = Arrays.asList(((Consumable) record).getItemNameProperty());
+			} else {
+				properties = new ArrayList<Observable>();
+			}
+		}
+
+		private String text() {
+			if (record instanceof Ingredient) {
+				Ingredient ingredient = (Ingredient) record;
+				return join(ingredient.getName(), ingredient.getLabel(), ingredient.getInfo());
+			}
+			if (record instanceof Recipe)
+				return join(((Recipe) record).getTitle());
+			if (record instanceof LabelSet)
+				return join(((LabelSet) record).setName);
+			if (record instanceof Consumable)
+				return join(((Consumable) record).getItemName());
+			return "";
+		}
+
+		private String join(String... texts) {
+			StringBuilder joined = new StringBuilder();
+			for (String text : texts) {
+				if (text != null)
+					joined.append(text).append(' ');
+			}
+			return joined.toString();
+		}
+
+		/**
+		 * @return true if, for every keyword, one of the terms begins with it
+		 */
+		private boolean matches(String[] keywords) {
+			for (String keyword : keywords) {
+				boolean held = false;
+				for (String term : terms) {
+					if (term.startsWith(keyword)) {
+						held = true;
+						break;
+					}
+				}
+				if (!held)
+					return false;
+			}
+			return true;
+		}
+
+		@Override
+		public void invalidated(Observable property) {
+			unindex(this);
+			index(this);
+		}
+	}
+
+}
@@ -0,0 +1,185 @@
+package oatboat.model.logic;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+
+import oatboat.model.food.NutrientSet;
+
+/**
+ * one coherent, immutable copy of the local FDC data: the foods which have both
+ * a description in food.csv and nutrient data in food_nutrient.csv, the values
+ * of their nutrients, their data types and categories, and a search over them.
+ * <p>
+ * the two files are joined when the data is created, so every food which can
+ * be found by a search has nutrients, and every food with nutrients has a
+ * description. the data is created whole by {@link FDCDatabase} and published
+ * in one step, so a reader sees either none of it or all of it.
+ * <p>
+ * in low memory mode the nutrients are read from the CSV file through an
+ * {@link FDCNutrientIndex} rather than held in an {@link FDCNutrientTable}.
+ */
+public class FDCData {
+
+	private final FDCFoodCatalog foods;
+	private final FDCNutrientTable nutrients;
+	private final FDCNutrientIndex index;
+	private final FDCFacets facets;
+	private final FDCSearch search;
+	private FDCNutrientTree tree;
+
+	private FDCData(FDCFoodCatalog foods, FDCNutrientTable nutrients, FDCNutrientIndex index, FDCFacets facets) {
+		this.foods = foods;
+		this.nutrients = nutrients;
+		this.index = index;
+		this.facets = facets;
+		this.search = new FDCSearch(foods, openTokenIndex(foods));
+	}
+
+	/**
+	 * @param foods     foods which all have a row in the table, e.g. those of a
+	 *                  snapshot
+	 * @param nutrients the nutrients of the foods
+	 * @param facets    the data types and categories of the foods
+	 */
+	static FDCData of(FDCFoodCatalog foods, FDCNutrientTable nutrients, FDCFacets facets) {
+		return new FDCData(foods, nutrients, null, facets);
+	}
+
+	/**
+	 * join the foods of food.csv with the rows of the nutrient table, keeping only
+	 * the foods found in both
+	 *
+	 * @param rows          the description, data type and food_category_id of
+	 *                      each food by fdc id, in any order
+	 * @param nutrients     the parsed nutrients file
+	 * @param categoryNames descriptions of the categories by food_category_id
+	 */
+	static FDCData join(Map<Integer, String[]> rows, FDCNutrientTable nutrients, Map<String, String> categoryNames) {
+		BitSet kept = new BitSet(nutrients.size());
+		for (int row = 0; row < nutrients.size(); row++) {
+			if (rows.containsKey(nutrients.getID(row)))
+				kept.set(row);
+		}
+
+		FDCNutrientTable joined = nutrients.retain(kept);
+		int[] ids = new int[joined.size()];
+		for (int row = 0; row < ids.length; row++)
+			ids[row] = joined.getID(row);
+		return new FDCData(catalog(ids, rows), joined, null, facets(ids, rows, categoryNames));
+	}
+
+	/**
+	 * join the foods of food.csv with the foods of the nutrients file index,
+	 * keeping only the foods found in both
+	 *
+	 * @param rows          the description, data type and food_category_id of
+	 *                      each food by fdc id, in any order
+	 * @param index         the indexed nutrients file
+	 * @param categoryNames descriptions of the categories by food_category_id
+	 */
+	static FDCData join(Map<Integer, String[]> rows, FDCNutrientIndex index, Map<String, String> categoryNames) {
+		int[] ids = new int[rows.size()];
+		int count = 0;
+		for (int fdcID : rows.keySet()) {
+			if (index.contains(fdcID))
+				ids[count++] = fdcID;
+		}
+		ids = Arrays.copyOf(ids, count);
+		Arrays.sort(ids);
+		return new FDCData(catalog(ids, rows), null, index, facets(ids, rows, categoryNames));
+	}
+
+	private static FDCFoodCatalog catalog(int[] ids, Map<Integer, String[]> rows) {
+		String[] descriptions = new String[ids.length];
+		for (int i = 0; i < ids.length; i++)
+			descriptions[i] = rows.get(ids[i])[0];
+		return new FDCFoodCatalog(ids, descriptions);
+	}
+
+	private static FDCFacets facets(int[] ids, Map<Integer, String[]> rows, Map<String, String> categoryNames) {
+		String[] dataTypes = new String[ids.length];
+		String[] categories = new String[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			String[] row = rows.get(ids[i]);
+			dataTypes[i] = row[1];
+			categories[i] = row[2];
+		}
+		return FDCFacets.of(dataTypes, categories, categoryNames);
+	}
+
+	/**
+	 * map the search index written by an earlier session when it is up to date,
+	 * or otherwise build it and write it for the next
+	 */
+	private static FDCTokenIndex openTokenIndex(FDCFoodCatalog foods) {
+		FDCTokenIndex tokens = FDCTokenIndex.open(foods);
+		if (tokens == null) {
+			tokens = FDCTokenIndex.build(foods);
+			if (foods.size() > 0) {
+				try {
+					tokens.write(foods);
+				} catch (IOException e) {
+					System.out.println("fdc search index could not be written: " + e);
+				}
+			}
+		}
+		return tokens;
+	}
+
+	/**
+	 * @return the fdc ids & descriptions of every food
+	 */
+	public FDCFoodCatalog getFoods() {
+		return foods;
+	}
+
+	/**
+	 * @return the data types and categories of the foods
+	 */
+	public FDCFacets getFacets() {
+		return facets;
+	}
+
+	public FDCSearch getSearch() {
+		return search;
+	}
+
+	/**
+	 * @return the table of every food's nutrients, or null in low memory mode
+	 */
+	public FDCNutrientTable getNutrients() {
+		return nutrients;
+	}
+
+	public boolean isLowMemory() {
+		return nutrients == null;
+	}
+
+	/**
+	 * @return a new nutrient set for the given food, or null if it is not held
+	 */
+	public NutrientSet getNutrientSet(int fdcID) {
+		return nutrients != null ? nutrients.getNutrientSet(fdcID) : index.getNutrientSet(fdcID);
+	}
+
+	/**
+	 * @return every value held for the given food, in the order of the catalog's
+	 *         slots; or null if it is not held
+	 */
+	public double[] getValues(int fdcID) {
+		return nutrients != null ? nutrients.getValues(fdcID) : index.getValues(fdcID);
+	}
+
+	/**
+	 * @return a tree of the nutrients of every food with a complete profile, built
+	 *         on the first call; or null in low memory mode
+	 */
+	public synchronized FDCNutrientTree getNutrientTree() {
+		if (tree == null && nutrients != null)
+			tree = FDCNutrientTree.build(nutrients);
+		return tree;
+	}
+
+}
@@ -2,19 +2,51 @@ package oatboat.model.logic;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.function.BooleanSupplier;
 
 import javafx.beans.property.ReadOnlyBooleanWrapper;
+import javafx.beans.property.ReadOnlyDoubleProperty;
+import javafx.beans.property.ReadOnlyDoubleWrapper;
+import javafx.beans.property.ReadOnlyLongProperty;
+import javafx.beans.property.ReadOnlyLongWrapper;
+import javafx.beans.property.ReadOnlyStringProperty;
+import javafx.beans.property.ReadOnlyStringWrapper;
+import oatboat.model.food.Ingredient;
 import oatboat.model.food.NutrientSet;
 
 /**
  * reads data from CSV files retrieved from fdc.nal.usda.gov
  * <p>
  * when instantiated, implements Runnable to facilitate background/concurrent
- * construction of internal treemap for fast retrieval of nutrient sets
+ * construction of an internal {@link FDCNutrientTable} for fast retrieval of
+ * nutrient sets
+ * <p>
+ * food.csv is read alongside the nutrients, and the two are joined into one
+ * {@link FDCData} holding only the foods found in both; this is published
+ * whole, once complete, so descriptions, nutrients and search always agree.
+ * <p>
+ * in low memory mode an {@link FDCNutrientIndex} is constructed instead, and
+ * nutrient sets are read from the CSV file when needed.
+ * <p>
+ * the progress of loading is published through read-only properties: bytes
+ * processed, rows per second, estimated seconds remaining and, if loading
+ * failed, the reason. these are updated from the loading threads, so listeners
+ * which touch the scene graph must defer to the JavaFX thread. a summary line
+ * is printed at the end of every load.
+ * <p>
+ * a load which is no longer wanted may be stopped with {@link #cancel()}.
  * <p>
  * static methods :
  * 
@@ -22,132 +54,353 @@ import oatboat.model.food.NutrientSet;
  */
 public class FDCDatabase implements Runnable {
 
-	private Map<Integer, NutrientSet> fdcDB;
+	// every part of the loaded data, published at once
+	private volatile FDCData data;
 	private ReadOnlyBooleanWrapper dbReady = new ReadOnlyBooleanWrapper(false);
-	final int energy_kJ = 1062;
-	final int energy_kcal = 1008;
-	final int fat = 1004;
-	final int saturates = 1258;
-	final int carbohydrates = 1005;
-	final int sugars = 2000;
-	final int protein = 1003;
-	final int salt = 1093;
+	private final boolean lowMemory;
+	private volatile boolean cancelled = false;
+
+	private ReadOnlyLongWrapper bytesProcessed = new ReadOnlyLongWrapper(0);
+	private ReadOnlyLongWrapper bytesTotal = new ReadOnlyLongWrapper(0);
+	private ReadOnlyDoubleWrapper rowsPerSecond = new ReadOnlyDoubleWrapper(0);
+	private ReadOnlyDoubleWrapper secondsRemaining = new ReadOnlyDoubleWrapper(-1);
+	private ReadOnlyStringWrapper failureReason = new ReadOnlyStringWrapper(null);
+	private final FDCNutrientCatalog catalog;
+
+	// reads nutrient blocks ahead of need, in low memory mode
+	private static final ExecutorService prefetcher = Executors.newSingleThreadExecutor(task -> {
+		Thread thread = new Thread(task, "fdc prefetch");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public FDCDatabase() {
+		this(false);
+	}
 
 	/**
-	 * creates an internal map of a local FDC nutrients CSV file.
+	 * @param lowMemory if true, keep only an index of the nutrients file in memory
+	 *                  rather than every food's nutrient values
+	 */
+	public FDCDatabase(boolean lowMemory) {
+		this(lowMemory, FDCNutrientCatalog.DEFAULT);
+	}
+
+	/**
+	 * @param lowMemory if true, keep only an index of the nutrients file in memory
+	 *                  rather than every food's nutrient values
+	 * @param catalog   the nutrients to keep for each food
+	 */
+	public FDCDatabase(boolean lowMemory, FDCNutrientCatalog catalog) {
+		this.lowMemory = lowMemory;
+		this.catalog = catalog;
+	}
+
+	/**
+	 * creates an internal table of a local FDC nutrients CSV file.
 	 * <p>
 	 * intended use is to facilitate instant retrieval of a nutrient set upon user
 	 * selection of a search result: execution of this method in a concurrent thread
 	 * constructs the nutrient sets while the user manually searches for their
 	 * desired ingredient.
+	 * <p>
+	 * the file is memory mapped and read by {@link FDCNutrientParser}, which
+	 * avoids creating Strings for each of the (many millions of) rows. the file is
+	 * split into chunks which are parsed in parallel, and the partial tables of
+	 * each chunk are merged into one.
+	 * <p>
+	 * if an up to date {@link FDCSnapshot} exists it is loaded instead; otherwise
+	 * a new snapshot is written once both CSV files have been read.
+	 * <p>
+	 * in low memory mode, only the {@link FDCNutrientIndex} is built.
+	 * <p>
+	 * food.csv is read on a thread of its own while the nutrients are parsed, and
+	 * the foods of both files are joined before the data is published.
 	 */
 	@Override
 	public void run() {
-		try {
-			File fdcNutrientsCSV = new File("fdc/food_nutrient.csv");
-
-			if (fdcNutrientsCSV.isFile()) {
-				BufferedReader reader = new BufferedReader(new FileReader(fdcNutrientsCSV));
-				NutrientSet nutrients = new NutrientSet();
-
-				fdcDB = new TreeMap<Integer, NutrientSet>();
-
-				int fdcID = 0;
-				int nutrientID;
-				double nutrientValue;
-
-				String row = reader.readLine();
-				do {
-					String[] lineData = row.split(",");
-					int nextFdcID = parseInt(lineData[1]);
-					if (nextFdcID != fdcID) {
-						fdcDB.put(fdcID, nutrients);
-						nutrients = new NutrientSet();
-						fdcID = nextFdcID;
-					}
-					nutrientID = parseInt(lineData[2]);
-					nutrientValue = parseDouble(lineData[3]);
+		LoadProgress progress = new LoadProgress();
 
-					switch (nutrientID) {
-					case energy_kJ:
-						nutrients.setEnergyKJ(nutrientValue);
-						break;
+		if (loadSnapshot()) {
+			bytesTotal.set(FDCSnapshot.SNAPSHOT.length());
+			progress.advance(bytesTotal.get(), data.getFoods().size());
+			progress.finish("snapshot");
+			return;
+		}
 
-					case energy_kcal:
-						nutrients.setEnergyKcal(nutrientValue);
-						break;
+		try {
+			File fdcNutrientsCSV = FDCSnapshot.NUTRIENT_CSV;
 
-					case fat:
-						nutrients.setFat(nutrientValue);
-						break;
+			if (!fdcNutrientsCSV.isFile()) {
+				progress.fail("Is food_nutrient.csv present in the folder '/fdc'?");
+				return;
+			}
 
-					case saturates:
-						nutrients.setSaturates(nutrientValue);
-						break;
+			long[] sources = FDCSnapshot.sourceStamp();
+			FutureTask<Map<Integer, String[]>> foods = new FutureTask<Map<Integer, String[]>>(
+					FDCDatabase::readFoodCSV);
+			Thread reader = new Thread(foods, "fdc foods");
+			reader.setDaemon(true);
+			reader.start();
+
+			bytesTotal.set(fdcNutrientsCSV.length());
+			FDCData loaded;
+			if (lowMemory) {
+				FDCNutrientIndex index = FDCNutrientIndex.build(fdcNutrientsCSV, catalog, progress);
+				if (foods.get() == null) {
+					progress.fail("Is food.csv present in the folder '/fdc'?");
+					return;
+				}
+				loaded = FDCData.join(foods.get(), index, readCategoryCSV());
+			} else {
+				FDCNutrientTable nutrients = FDCNutrientParser.parse(fdcNutrientsCSV, catalog,
+						() -> new NutrientTableBuilder(catalog.size()), FDCNutrientTable.Builder::append, progress)
+						.build();
+				if (foods.get() == null) {
+					progress.fail("Is food.csv present in the folder '/fdc'?");
+					return;
+				}
+				loaded = FDCData.join(foods.get(), nutrients, readCategoryCSV());
+			}
 
-					case carbohydrates:
-						nutrients.setCarbohydrates(nutrientValue);
-						break;
+			data = loaded;
+			dbReady.setValue(true);
+			progress.finish(lowMemory ? "csv index" : "csv");
 
-					case sugars:
-						nutrients.setSugars(nutrientValue);
-						break;
+			if (!lowMemory && sources != null && loaded.getFoods().size() > 0)
+				FDCSnapshot.write(sources, catalog, loaded.getNutrients(), loaded.getFoods(), loaded.getFacets());
 
-					case protein:
-						nutrients.setProtein(nutrientValue);
-						break;
+		} catch (CancellationException e) {
+			progress.fail("loading was cancelled");
+		} catch (Exception e) {
+			if (!dbReady.get())
+				progress.fail(e.toString());
+			else
+				System.out.println("fdc snapshot could not be written: " + e);
+		}
 
-					case salt:
-						nutrients.setSalt(nutrientValue);
-						break;
-					}
+	}
 
-				} while ((row = reader.readLine()) != null);
+	/**
+	 * load the data from the memory mapped snapshot of the CSV files, if it is up
+	 * to date. the snapshot is mapped rather than parsed, but every description is
+	 * still decoded and folded, and the search index is built if it is missing, so
+	 * this takes a second or more for a full release: it is only called by
+	 * {@link #run()}, on the loading thread.
+	 * 
+	 * @return true if the snapshot was loaded and the database is ready; always
+	 *         false in low memory mode
+	 */
+	private boolean loadSnapshot() {
+		if (lowMemory)
+			return false;
 
-				reader.close();
-				dbReady.setValue(true);
-			}
+		FDCSnapshot snapshot = FDCSnapshot.open(catalog);
+		if (snapshot == null)
+			return false;
 
-		} catch (Exception e) {
+		try {
+			data = FDCData.of(snapshot.getFoods(), snapshot.getNutrients(), snapshot.getFacets(readCategoryCSV()));
+		} catch (RuntimeException e) {
+			// a damaged snapshot is simply rebuilt from the CSV files
+			return false;
 		}
+		dbReady.setValue(true);
+		return true;
+	}
 
+	/**
+	 * stop loading before the next chunk of the nutrients file is read. chunks
+	 * already being parsed are finished, then the load fails without the database
+	 * becoming ready. does nothing once the nutrients file has been read.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isLowMemory() {
+		return lowMemory;
 	}
 
 	public ReadOnlyBooleanWrapper isReady() {
 		return dbReady;
 	}
 
+	public ReadOnlyLongProperty getBytesProcessedProperty() {
+		return bytesProcessed.getReadOnlyProperty();
+	}
+
+	public ReadOnlyLongProperty getBytesTotalProperty() {
+		return bytesTotal.getReadOnlyProperty();
+	}
+
+	public ReadOnlyDoubleProperty getRowsPerSecondProperty() {
+		return rowsPerSecond.getReadOnlyProperty();
+	}
+
+	/**
+	 * @return the estimated time until loading completes, or -1 while no estimate
+	 *         is available
+	 */
+	public ReadOnlyDoubleProperty getSecondsRemainingProperty() {
+		return secondsRemaining.getReadOnlyProperty();
+	}
+
+	/**
+	 * @return a description of why loading failed, or null while it has not
+	 */
+	public ReadOnlyStringProperty getFailureReasonProperty() {
+		return failureReason.getReadOnlyProperty();
+	}
+
+	/**
+	 * @return a new nutrient set for the given food. foods without any of the held
+	 *         nutrients, and every food until the database is ready, receive a set
+	 *         of zero values
+	 */
 	public NutrientSet getNutrientSet(int fdcID) {
-		return fdcDB.get(fdcID);
+		FDCData loaded = data;
+		NutrientSet nutrients = loaded == null ? null : loaded.getNutrientSet(fdcID);
+		return nutrients == null ? new NutrientSet() : nutrients;
 	}
 
 	/**
-	 * read a local copy of the FDC food items database to produce a hashmap of
-	 * fdc_id & food descriptions
-	 * 
-	 * @return a map of Integers and Strings
+	 * @return every value held for the given food, including those beyond a
+	 *         NutrientSet (e.g. fibre), in the order of the catalog's slots; or null
+	 *         if the food has no nutrient data or the database is not ready
 	 */
-	public static Map<Integer, String> getFoodList() {
+	public double[] getNutrientValues(int fdcID) {
+		FDCData loaded = data;
+		return loaded == null ? null : loaded.getValues(fdcID);
+	}
 
-		Map<Integer, String> foodsMap = new HashMap<Integer, String>();
+	public FDCNutrientCatalog getCatalog() {
+		return catalog;
+	}
+
+	/**
+	 * in low memory mode, read and cache the nutrients of the given food in the
+	 * background, so a following {@link #getNutrientSet(int)} need not wait for
+	 * the file. does nothing in the default mode, or before the database is ready.
+	 */
+	public void prefetch(int fdcID) {
+		FDCData loaded = data;
+		if (lowMemory && loaded != null)
+			prefetcher.execute(() -> loaded.getNutrientSet(fdcID));
+	}
+
+	/**
+	 * @return the foods, nutrients and search of the local FDC data, all of which
+	 *         agree; or null until the database is ready
+	 */
+	public FDCData getData() {
+		return data;
+	}
+
+	/**
+	 * search the foods of this database by keywords and by ranges of nutrient
+	 * values written into the query, e.g. "oats protein&gt;10 sugars&lt;5"; see
+	 * {@link FDCNutrientFilter}.
+	 * <p>
+	 * the ranges are tested against the nutrient table, so are ignored in low
+	 * memory mode, which the results report; see
+	 * {@link FDCSearchResults#isFilterIgnored()}. nothing is found until the
+	 * database is ready.
+	 *
+	 * @param query     raw input from the user
+	 * @param limit     the greatest number of foods to return
+	 * @param cancelled tested regularly while searching
+	 * @return the best matches, in order of relevance
+	 * @see FDCSearch#getResults(String, int, BitSet, BooleanSupplier)
+	 */
+	public FDCSearchResults search(String query, int limit, BooleanSupplier cancelled) {
+		return search(query, null, null, limit, cancelled);
+	}
+
+	/**
+	 * as {@link #search(String, int, BooleanSupplier)}, finding only foods of the
+	 * given data type and category; see {@link FDCFacets}
+	 *
+	 * @param dataType   the data type wanted, or null for any
+	 * @param categoryID the food_category_id wanted, or null for any
+	 */
+	public FDCSearchResults search(String query, String dataType, String categoryID, int limit,
+			BooleanSupplier cancelled) {
+		FDCData loaded = data;
+		if (loaded == null)
+			return new FDCSearchResults(new LinkedHashMap<Integer, String>(), 0);
+
+		BitSet allowed = loaded.getFacets().select(dataType, categoryID);
+		FDCNutrientFilter filter = FDCNutrientFilter.parse(query, catalog);
+		if (!filter.isEmpty() && !loaded.isLowMemory()) {
+			BitSet inRange = filter.apply(loaded.getNutrients(), loaded.getFoods());
+			if (allowed == null)
+				allowed = inRange;
+			else
+				allowed.and(inRange);
+		}
+		FDCSearchResults found = loaded.getSearch().getResults(FDCNutrientFilter.strip(query, catalog), limit,
+				allowed, cancelled);
+		return !filter.isEmpty() && loaded.isLowMemory() ? found.ignoringFilter() : found;
+	}
+
+	/**
+	 * find the FDC foods with the nutrient profile closest to an ingredient's,
+	 * e.g. to replace it. the ingredient's own FDC food is left out.
+	 *
+	 * @param ingredient the ingredient to match
+	 * @param k          the number of foods to find
+	 * @param weights    how much a difference in each nutrient of a NutrientSet
+	 *                   counts, or null to count them alike
+	 * @return fdc ids & descriptions of the closest foods, closest first; empty in
+	 *         low memory mode and until the nutrients have loaded
+	 */
+	public Map<Integer, String> getSimilarFoods(Ingredient ingredient, int k, double[] weights) {
+		Map<Integer, String> similar = new LinkedHashMap<Integer, String>();
+		FDCData loaded = data;
+		FDCNutrientTree tree = loaded == null ? null : loaded.getNutrientTree();
+		if (tree == null)
+			return similar;
+
+		FDCFoodCatalog foods = loaded.getFoods();
+		for (int fdcID : tree.nearest(ingredient.getNutrientSet().getAllValues(), k + 1, weights)) {
+			if (similar.size() == k || String.valueOf(fdcID).equals(ingredient.getId()))
+				continue;
+			int position = foods.indexOf(fdcID);
+			similar.put(fdcID, position < 0 ? String.valueOf(fdcID) : foods.getDescription(position));
+		}
+		return similar;
+	}
+
+	/**
+	 * @return the description, data type and food_category_id of each food by fdc
+	 *         id, or null if food.csv is missing
+	 */
+	private static Map<Integer, String[]> readFoodCSV() {
+
+		Map<Integer, String[]> foodsMap = new HashMap<Integer, String[]>();
 
 		try {
-			File csv = new File("fdc/food.csv");
+			File csv = FDCSnapshot.FOOD_CSV;
 
 			if (csv.isFile()) {
-				BufferedReader csvReader = new BufferedReader(new FileReader(csv));
+				BufferedReader csvReader = new BufferedReader(
+						new InputStreamReader(new FileInputStream(csv), StandardCharsets.UTF_8));
 				String row = "";
 
 				while ((row = csvReader.readLine()) != null) {
 					try {
+						// "fdc_id","data_type","description","food_category_id","publication_date"
 						String[] lineData = row.split("\",\"");
 
 						int fdcID = Integer.parseInt(lineData[0].substring(1));
 						String foodDesc = lineData[2];
+						String category = lineData.length > 3 ? lineData[3] : null;
 
 						// place a food item to the local map with key: fdc_id and value: the food's
-						// description
-						foodsMap.put(fdcID, foodDesc);
+						// description, data type and category
+						foodsMap.put(fdcID, new String[] { foodDesc, lineData[1].intern(),
+								category == null ? null : category.intern() });
 					} catch (Exception e) {
 					}
 				}
@@ -163,19 +416,98 @@ public class FDCDatabase implements Runnable {
 
 	}
 
-	private static int parseInt(String input) {
-		try {
-			return Integer.parseInt(input.substring(1, input.length() - 1));
-		} catch (Exception e) {
-			return -1;
+	/**
+	 * @return the description of each food category by food_category_id, read from
+	 *         food_category.csv; empty if the file is missing
+	 */
+	private static Map<String, String> readCategoryCSV() {
+		Map<String, String> categories = new HashMap<String, String>();
+		File csv = FDCSnapshot.CATEGORY_CSV;
+		if (!csv.isFile())
+			return categories;
+
+		try (BufferedReader csvReader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(csv), StandardCharsets.UTF_8))) {
+			String row;
+			while ((row = csvReader.readLine()) != null) {
+				// "id","code","description"
+				String[] lineData = row.split("\",\"");
+				if (lineData.length == 3 && lineData[2].endsWith("\""))
+					categories.put(lineData[0].substring(1), lineData[2].substring(0, lineData[2].length() - 1));
+			}
+		} catch (IOException e) {
+			System.out.println("food_category.csv could not be read: " + e);
 		}
+		return categories;
 	}
 
-	private static double parseDouble(String input) {
-		try {
-			return Double.parseDouble(input.substring(1, input.length() - 1));
-		} catch (Exception e) {
-			return -1.0;
+	/**
+	 * gathers the progress reported by the parsing threads and publishes it to the
+	 * progress properties
+	 */
+	private class LoadProgress implements FDCNutrientParser.Progress {
+
+		private final long started = System.nanoTime();
+		private long bytes = 0;
+		private long rows = 0;
+
+		@Override
+		public synchronized void advance(long chunkBytes, long chunkRows) {
+			bytes += chunkBytes;
+			rows += chunkRows;
+
+			double seconds = elapsedSeconds();
+			bytesProcessed.set(bytes);
+			if (seconds > 0) {
+				rowsPerSecond.set(rows / seconds);
+				secondsRemaining.set((bytesTotal.get() - bytes) / (bytes / seconds));
+			}
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		private void finish(String source) {
+			secondsRemaining.set(0);
+			System.out.println(String.format(
+					"fdc load (%s%s): %,d bytes, %,d rows in %.2f s; %,.0f rows/s, %,.1f MB/s", source,
+					lowMemory ? ", low memory" : "", bytes, rows, elapsedSeconds(), rowsPerSecond.get(),
+					bytes / 1e6 / Math.max(elapsedSeconds(), 1e-9)));
+		}
+
+		private void fail(String reason) {
+			failureReason.set(reason);
+			System.out.println(String.format("fdc load failed after %.2f s, %,d bytes: %s", elapsedSeconds(), bytes,
+					reason));
+		}
+
+		private double elapsedSeconds() {
+			return (System.nanoTime() - started) / 1e9;
+		}
+	}
+
+	/**
+	 * collects the parsed rows of one chunk of the nutrients file into a partial
+	 * table
+	 */
+	private static class NutrientTableBuilder implements FDCNutrientParser.ChunkHandler<FDCNutrientTable.Builder> {
+
+		private final FDCNutrientTable.Builder builder;
+
+		private NutrientTableBuilder(int width) {
+			builder = new FDCNutrientTable.Builder(width);
+		}
+
+		@Override
+		public FDCNutrientTable.Builder result() {
+			return builder;
+		}
+
+		@Override
+		public void accept(int fdcID, int slot, double nutrientValue) {
+			builder.set(fdcID, slot, nutrientValue);
 		}
 	}
 
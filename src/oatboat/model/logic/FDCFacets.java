@@ -0,0 +1,221 @@
+package oatboat.model.logic;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * the data type (e.g. foundation_food, sr_legacy_food, branded_food) and food
+ * category of every food of an {@link FDCFoodCatalog}, as read from food.csv,
+ * for narrowing searches to some kinds of food.
+ * <p>
+ * each facet holds its distinct values once, a short code per food giving the
+ * position of its value, and one bitmap of catalog positions per value, made
+ * when the facets are built. foods of one data type and one category are found
+ * by intersecting two bitmaps, and combined with a search through
+ * {@link FDCSearch#getResults(String, int, BitSet, java.util.function.BooleanSupplier)}.
+ * <p>
+ * categories are held by food_category_id; their descriptions are read from
+ * food_category.csv where it is present.
+ */
+public class FDCFacets {
+
+	private final Facet dataTypes;
+	private final Facet categories;
+	private final Map<String, String> categoryNames;
+
+	private FDCFacets(Facet dataTypes, Facet categories, Map<String, String> categoryNames) {
+		this.dataTypes = dataTypes;
+		this.categories = categories;
+		this.categoryNames = categoryNames;
+	}
+
+	/**
+	 * @param dataTypes     the data type of each food of a catalog, by position, or
+	 *                      null where unknown
+	 * @param categories    the food_category_id of each food, by position, or null
+	 *                      where unknown
+	 * @param categoryNames descriptions of the categories by food_category_id
+	 */
+	static FDCFacets of(String[] dataTypes, String[] categories, Map<String, String> categoryNames) {
+		return new FDCFacets(Facet.of(dataTypes), Facet.of(categories), categoryNames);
+	}
+
+	/**
+	 * @return the data types of the foods, in alphabetical order
+	 */
+	public List<String> getDataTypes() {
+		return dataTypes.getValues();
+	}
+
+	/**
+	 * @return the food_category_id of each category of the foods, in order of
+	 *         their names
+	 */
+	public List<String> getCategories() {
+		List<String> ids = new ArrayList<String>(categories.getValues());
+		ids.sort((a, b) -> getCategoryName(a).compareToIgnoreCase(getCategoryName(b)));
+		return ids;
+	}
+
+	/**
+	 * @return the description of the category, or "category" and its id if it has
+	 *         none
+	 */
+	public String getCategoryName(String categoryID) {
+		String name = categoryNames.get(categoryID);
+		return name == null ? "category " + categoryID : name;
+	}
+
+	/**
+	 * @return the data type of the food at the given catalog position, or null
+	 */
+	public String getDataType(int position) {
+		return dataTypes.getValue(position);
+	}
+
+	/**
+	 * @return the food_category_id of the food at the given catalog position, or
+	 *         null
+	 */
+	public String getCategory(int position) {
+		return categories.getValue(position);
+	}
+
+	/**
+	 * @param dataType   the data type wanted, or null for any
+	 * @param categoryID the category wanted, or null for any
+	 * @return catalog positions of the foods of the data type and category; or
+	 *         null if both are null, as every food would be selected
+	 */
+	public BitSet select(String dataType, String categoryID) {
+		BitSet selected = null;
+		if (dataType != null)
+			selected = dataTypes.getFoods(dataType);
+		if (categoryID != null) {
+			if (selected == null)
+				selected = categories.getFoods(categoryID);
+			else
+				selected.and(categories.foods(categoryID));
+		}
+		return selected;
+	}
+
+	/**
+	 * write the facets as, for each: the number of values, each value, then the
+	 * code of each food
+	 */
+	void writeTo(DataOutputStream out) throws IOException {
+		dataTypes.writeTo(out);
+		categories.writeTo(out);
+	}
+
+	/**
+	 * read facets written by {@link #writeTo(DataOutputStream)}, starting at the
+	 * current position of the buffer
+	 *
+	 * @param size          the number of foods of the catalog
+	 * @param categoryNames descriptions of the categories by food_category_id
+	 */
+	static FDCFacets readFrom(ByteBuffer buffer, int size, Map<String, String> categoryNames) {
+		Facet dataTypes = Facet.readFrom(buffer, size);
+		Facet categories = Facet.readFrom(buffer, size);
+		return new FDCFacets(dataTypes, categories, categoryNames);
+	}
+
+	/**
+	 * the distinct values of one column of food.csv, and which foods have each
+	 */
+	private static class Facet {
+
+		private static final BitSet NONE = new BitSet();
+
+		private final String[] values;
+		private final short[] codes;
+		private final BitSet[] foods;
+
+		private Facet(String[] values, short[] codes) {
+			this.values = values;
+			this.codes = codes;
+			this.foods = new BitSet[values.length];
+			for (int value = 0; value < values.length; value++)
+				foods[value] = new BitSet(codes.length);
+			for (int position = 0; position < codes.length; position++) {
+				if (codes[position] >= 0)
+					foods[codes[position]].set(position);
+			}
+		}
+
+		private static Facet of(String[] byPosition) {
+			TreeSet<String> distinct = new TreeSet<String>();
+			for (String value : byPosition) {
+				if (value != null && !value.isEmpty())
+					distinct.add(value);
+			}
+			if (distinct.size() > Short.MAX_VALUE)
+				throw new IllegalArgumentException("too many values for a facet: " + distinct.size());
+
+			String[] values = distinct.toArray(new String[distinct.size()]);
+			short[] codes = new short[byPosition.length];
+			for (int position = 0; position < codes.length; position++) {
+				String value = byPosition[position];
+				codes[position] = (short) (value == null || value.isEmpty() ? -1 : Arrays.binarySearch(values, value));
+			}
+			return new Facet(values, codes);
+		}
+
+		private List<String> getValues() {
+			return Collections.unmodifiableList(Arrays.asList(values));
+		}
+
+		private String getValue(int position) {
+			return codes[position] < 0 ? null : values[codes[position]];
+		}
+
+		/**
+		 * @return a copy of the foods having the value
+		 */
+		private BitSet getFoods(String value) {
+			return (BitSet) foods(value).clone();
+		}
+
+		// the foods having the value, not to be changed
+		private BitSet foods(String value) {
+			int code = Arrays.binarySearch(values, value);
+			return code < 0 ? NONE : foods[code];
+		}
+
+		private void writeTo(DataOutputStream out) throws IOException {
+			out.writeInt(values.length);
+			for (String value : values) {
+				byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+			for (short code : codes)
+				out.writeShort(code);
+		}
+
+		private static Facet readFrom(ByteBuffer buffer, int size) {
+			String[] values = new String[buffer.getInt()];
+			for (int value = 0; value < values.length; value++) {
+				byte[] bytes = new byte[buffer.getInt()];
+				buffer.get(bytes);
+				values[value] = new String(bytes, StandardCharsets.UTF_8);
+			}
+			short[] codes = new short[size];
+			buffer.asShortBuffer().get(codes);
+			buffer.position(buffer.position() + size * Short.BYTES);
+			return new Facet(values, codes);
+		}
+	}
+
+}
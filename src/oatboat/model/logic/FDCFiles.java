@@ -0,0 +1,53 @@
+package oatboat.model.logic;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+
+/**
+ * static method library for the files the FDC data writes beside the CSV files,
+ * such as the {@link FDCSnapshot} and the {@link FDCTokenIndex}.
+ */
+class FDCFiles {
+
+	// owner may write, everyone may read, as for a file created with the usual umask
+	private static final String PERMISSIONS = "rw-r--r--";
+
+	/**
+	 * the content of a file, written to a stream
+	 */
+	interface Content {
+		void writeTo(DataOutputStream out) throws IOException;
+	}
+
+	/**
+	 * write a file under a temporary name of its own and then move it into place,
+	 * so readers never see a partial file, and several sessions may write it at
+	 * once. the temporary file is made readable by everyone before it is moved,
+	 * as temporary files are created readable only by their owner.
+	 */
+	static void replace(File file, Content content) throws IOException {
+		Path folder = file.getAbsoluteFile().getParentFile().toPath();
+		Path temp = Files.createTempFile(folder, file.getName(), ".tmp");
+
+		try {
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+				content.writeTo(out);
+			}
+
+			if (temp.getFileSystem().supportedFileAttributeViews().contains("posix"))
+				Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString(PERMISSIONS));
+
+			Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+}
@@ -0,0 +1,152 @@
+package oatboat.model.logic;
+
+import java.util.Arrays;
+
+/**
+ * the fdc ids and descriptions of every food in the local FDC data (food.csv),
+ * held in memory for the length of a session.
+ * <p>
+ * foods are held in order of fdc id. alongside each description a folded copy
+ * is prepared once, for use as a search key, so that searches need not convert
+ * the descriptions on every query. see {@link TextUtils#fold(String)}. the
+ * number of words of each key is counted at the same time, for ranking.
+ * <p>
+ * a food is found by fdc id through an open addressing hash table of catalog
+ * positions, and foods whose ids begin with given digits through binary search
+ * of the ordered ids.
+ */
+public class FDCFoodCatalog {
+
+	private final int[] ids;
+	private final String[] descriptions;
+	private final String[] keys;
+	private final short[] termCounts;
+
+	// catalog position + 1 of the food whose id hashes to each slot, or 0
+	private final int[] table;
+
+	/**
+	 * @param ids          fdc ids in ascending order
+	 * @param descriptions the description of each food
+	 */
+	FDCFoodCatalog(int[] ids, String[] descriptions) {
+		this.ids = ids;
+		this.descriptions = descriptions;
+		this.keys = new String[descriptions.length];
+		this.termCounts = new short[descriptions.length];
+
+		for (int i = 0; i < descriptions.length; i++) {
+			keys[i] = TextUtils.fold(descriptions[i]);
+			termCounts[i] = (short) Math.min(Short.MAX_VALUE, FDCTokenIndex.countTerms(keys[i]));
+		}
+
+		int capacity = Integer.highestOneBit(Math.max(1, ids.length) * 2 - 1) * 2;
+		table = new int[capacity];
+		for (int i = 0; i < ids.length; i++) {
+			int slot = slot(ids[i]);
+			while (table[slot] != 0)
+				slot = (slot + 1) & (capacity - 1);
+			table[slot] = i + 1;
+		}
+	}
+
+	private int slot(int fdcID) {
+		// spread the bits of nearby ids across the table
+		int hash = fdcID * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & (table.length - 1);
+	}
+
+	/**
+	 * @return the number of foods held
+	 */
+	public int size() {
+		return ids.length;
+	}
+
+	/**
+	 * @return the position of the given food, or -1 if it is not held
+	 */
+	public int indexOf(int fdcID) {
+		for (int slot = slot(fdcID); table[slot] != 0; slot = (slot + 1) & (table.length - 1)) {
+			if (ids[table[slot] - 1] == fdcID)
+				return table[slot] - 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param prefix the leading digits of an fdc id, without leading zeros
+	 * @return ascending positions of the foods whose ids begin with the given
+	 *         digits
+	 */
+	public int[] indexOfPrefix(int prefix) {
+		int[] positions = new int[0];
+		if (prefix <= 0 || ids.length == 0)
+			return positions;
+
+		// ids beginning with the prefix and d further digits lie in one range, and
+		// the ranges for each d follow one another
+		long low = prefix;
+		long high = prefix;
+		long largest = ids[ids.length - 1];
+		while (low <= largest) {
+			int from = lowerBound(low);
+			int to = lowerBound(high + 1);
+			if (to > from) {
+				int size = positions.length;
+				positions = Arrays.copyOf(positions, size + to - from);
+				for (int i = from; i < to; i++)
+					positions[size + i - from] = i;
+			}
+			low = low * 10;
+			high = high * 10 + 9;
+		}
+		return positions;
+	}
+
+	/**
+	 * @return true if the decimal digits of the fdc id begin with those of the
+	 *         prefix
+	 */
+	public static boolean hasPrefix(int fdcID, int prefix) {
+		if (prefix <= 0)
+			return false;
+		while (fdcID > prefix)
+			fdcID /= 10;
+		return fdcID == prefix;
+	}
+
+	/**
+	 * @return the position of the first id not less than the given value
+	 */
+	private int lowerBound(long fdcID) {
+		if (fdcID > Integer.MAX_VALUE)
+			return ids.length;
+		int found = Arrays.binarySearch(ids, (int) fdcID);
+		return found < 0 ? -(found + 1) : found;
+	}
+
+	public int getID(int index) {
+		return ids[index];
+	}
+
+	public String getDescription(int index) {
+		return descriptions[index];
+	}
+
+	/**
+	 * @return the folded description of the food at the given position
+	 */
+	public String getKey(int index) {
+		return keys[index];
+	}
+
+	/**
+	 * @return the number of words of the folded description of the food at the
+	 *         given position
+	 */
+	public int getTermCount(int index) {
+		return termCounts[index];
+	}
+
+}
@@ -0,0 +1,84 @@
+package oatboat.model.logic;
+
+import java.util.Arrays;
+
+import oatboat.model.food.NutrientSet;
+
+/**
+ * the set of FDC nutrients which are kept when the nutrients CSV is read, and
+ * the position (slot) of each within a food's row of values.
+ * <p>
+ * slots are found through a dense int array indexed by nutrient_id, so the
+ * parser can decide whether a row is wanted as soon as its nutrient_id has
+ * been read; the amounts of the ~150 other nutrients in the FDC data are never
+ * parsed.
+ * <p>
+ * every catalog begins with the nutrients of a {@link NutrientSet}, in the order
+ * of {@link NutrientSet#getAllValues()}; further nutrients follow.
+ */
+public class FDCNutrientCatalog {
+
+	public static final int ENERGY_KJ = 1062;
+	public static final int ENERGY_KCAL = 1008;
+	public static final int FAT = 1004;
+	public static final int SATURATES = 1258;
+	public static final int CARBOHYDRATES = 1005;
+	public static final int SUGARS = 2000;
+	public static final int PROTEIN = 1003;
+	public static final int SALT = 1093; // listed as sodium, in mg
+	public static final int FIBRE = 1079;
+
+	private static final int[] NUTRIENT_SET_IDS = { ENERGY_KJ, ENERGY_KCAL, FAT, SATURATES, CARBOHYDRATES, SUGARS,
+			PROTEIN, SALT };
+
+	/**
+	 * the nutrients of a {@link NutrientSet}, plus fibre
+	 */
+	public static final FDCNutrientCatalog DEFAULT = new FDCNutrientCatalog(FIBRE);
+
+	private final int[] nutrientIDs;
+	private final int[] slots;
+
+	/**
+	 * create a catalog of the nutrients of a {@link NutrientSet} and any number of
+	 * further nutrients
+	 *
+	 * @param extraNutrientIDs FDC nutrient_id of each further nutrient to keep
+	 */
+	public FDCNutrientCatalog(int... extraNutrientIDs) {
+		nutrientIDs = Arrays.copyOf(NUTRIENT_SET_IDS, NUTRIENT_SET_IDS.length + extraNutrientIDs.length);
+		System.arraycopy(extraNutrientIDs, 0, nutrientIDs, NUTRIENT_SET_IDS.length, extraNutrientIDs.length);
+
+		int max = 0;
+		for (int id : nutrientIDs)
+			max = Math.max(max, id);
+
+		slots = new int[max + 1];
+		Arrays.fill(slots, -1);
+		for (int slot = nutrientIDs.length - 1; slot >= 0; slot--)
+			slots[nutrientIDs[slot]] = slot;
+	}
+
+	/**
+	 * @return the position of the nutrient within a food's values, or -1 if the
+	 *         nutrient is not kept
+	 */
+	public int slot(int nutrientID) {
+		return (nutrientID >= 0 && nutrientID < slots.length) ? slots[nutrientID] : -1;
+	}
+
+	/**
+	 * @return the number of nutrients kept for each food
+	 */
+	public int size() {
+		return nutrientIDs.length;
+	}
+
+	/**
+	 * @return the FDC nutrient_id of each slot
+	 */
+	public int[] getNutrientIDs() {
+		return nutrientIDs.clone();
+	}
+
+}
@@ -0,0 +1,161 @@
+package oatboat.model.logic;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * ranges of nutrient values per 100 g, e.g. "protein &gt; 10 g and sugars &lt; 5
+ * g", which foods of an {@link FDCNutrientTable} must lie within.
+ * <p>
+ * each range is tested by one scan of the nutrient's column, narrowing a bitmap
+ * of the table's rows, and the rows left are returned as catalog positions to
+ * be combined with a keyword search (see {@link FDCSearch}). foods without
+ * nutrient data never match, nor does a food match a range of a nutrient for
+ * which it has no value.
+ * <p>
+ * ranges may also be written into a search query, as a nutrient name, &lt; or
+ * &gt;, and an amount: "oats protein&gt;10 sugars&lt;5". see
+ * {@link #parse(String, FDCNutrientCatalog)}.
+ */
+public class FDCNutrientFilter {
+
+	// a nutrient name, a comparison and an amount, written within a query
+	private static final Pattern CONDITION = Pattern
+			.compile("(\\p{L}+)\\s*([<>])\\s*(\\d+(?:[.,]\\d+)?)");
+
+	// nutrient ids by the names which may be written in a query
+	private static final Map<String, Integer> NAMES = new HashMap<String, Integer>();
+
+	static {
+		NAMES.put("energy", FDCNutrientCatalog.ENERGY_KJ);
+		NAMES.put("kj", FDCNutrientCatalog.ENERGY_KJ);
+		NAMES.put("kcal", FDCNutrientCatalog.ENERGY_KCAL);
+		NAMES.put("calories", FDCNutrientCatalog.ENERGY_KCAL);
+		NAMES.put("fat", FDCNutrientCatalog.FAT);
+		NAMES.put("saturates", FDCNutrientCatalog.SATURATES);
+		NAMES.put("carbohydrates", FDCNutrientCatalog.CARBOHYDRATES);
+		NAMES.put("carbs", FDCNutrientCatalog.CARBOHYDRATES);
+		NAMES.put("sugar", FDCNutrientCatalog.SUGARS);
+		NAMES.put("sugars", FDCNutrientCatalog.SUGARS);
+		NAMES.put("protein", FDCNutrientCatalog.PROTEIN);
+		NAMES.put("salt", FDCNutrientCatalog.SALT);
+		NAMES.put("fibre", FDCNutrientCatalog.FIBRE);
+		NAMES.put("fiber", FDCNutrientCatalog.FIBRE);
+	}
+
+	private int[] slots = new int[0];
+	private double[] lows = new double[0];
+	private double[] highs = new double[0];
+
+	/**
+	 * read the conditions written in a search query. names of nutrients which the
+	 * catalog does not hold, and words which are not nutrient names, are left to
+	 * the keyword search. salt is written in grams, as on a label, and compared
+	 * with the milligrams held.
+	 *
+	 * @return a filter of every condition found, which is empty if there are none
+	 */
+	public static FDCNutrientFilter parse(String query, FDCNutrientCatalog catalog) {
+		FDCNutrientFilter filter = new FDCNutrientFilter();
+		Matcher condition = CONDITION.matcher(query);
+		while (condition.find()) {
+			int slot = slot(condition.group(1), catalog);
+			if (slot < 0)
+				continue;
+
+			double amount = Double.parseDouble(condition.group(3).replace(',', '.'));
+			if (slot == catalog.slot(FDCNutrientCatalog.SALT))
+				amount *= 1000;
+
+			if (condition.group(2).equals(">"))
+				filter.above(slot, amount);
+			else
+				filter.below(slot, amount);
+		}
+		return filter;
+	}
+
+	/**
+	 * @return the query without the conditions read by
+	 *         {@link #parse(String, FDCNutrientCatalog)}, leaving its keywords
+	 */
+	public static String strip(String query, FDCNutrientCatalog catalog) {
+		StringBuffer keywords = new StringBuffer();
+		Matcher condition = CONDITION.matcher(query);
+		while (condition.find()) {
+			String kept = slot(condition.group(1), catalog) < 0 ? condition.group() : " ";
+			condition.appendReplacement(keywords, Matcher.quoteReplacement(kept));
+		}
+		condition.appendTail(keywords);
+		return keywords.toString();
+	}
+
+	private static int slot(String name, FDCNutrientCatalog catalog) {
+		Integer nutrientID = NAMES.get(name.toLowerCase(Locale.ROOT));
+		return nutrientID == null ? -1 : catalog.slot(nutrientID);
+	}
+
+	/**
+	 * keep foods holding more than the given amount of a nutrient
+	 *
+	 * @param slot position of the nutrient, see {@link FDCNutrientCatalog}
+	 * @return this filter
+	 */
+	public FDCNutrientFilter above(int slot, double amount) {
+		return between(slot, Math.nextUp(amount), Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * keep foods holding less than the given amount of a nutrient
+	 *
+	 * @param slot position of the nutrient, see {@link FDCNutrientCatalog}
+	 * @return this filter
+	 */
+	public FDCNutrientFilter below(int slot, double amount) {
+		return between(slot, Double.NEGATIVE_INFINITY, Math.nextDown(amount));
+	}
+
+	/**
+	 * keep foods holding from the least to the greatest amount of a nutrient,
+	 * inclusive
+	 *
+	 * @param slot position of the nutrient, see {@link FDCNutrientCatalog}
+	 * @return this filter
+	 */
+	public FDCNutrientFilter between(int slot, double least, double greatest) {
+		int size = slots.length;
+		slots = Arrays.copyOf(slots, size + 1);
+		lows = Arrays.copyOf(lows, size + 1);
+		highs = Arrays.copyOf(highs, size + 1);
+		slots[size] = slot;
+		lows[size] = least;
+		highs[size] = greatest;
+		return this;
+	}
+
+	/**
+	 * @return true if there are no ranges, so every food would be kept
+	 */
+	public boolean isEmpty() {
+		return slots.length == 0;
+	}
+
+	/**
+	 * @param table the nutrients of every food
+	 * @param foods the catalog searched
+	 * @return the catalog positions of the foods whose nutrients lie within every
+	 *         range
+	 */
+	public BitSet apply(FDCNutrientTable table, FDCFoodCatalog foods) {
+		long[] rows = table.allRows();
+		for (int i = 0; i < slots.length; i++)
+			table.retainRange(slots[i], lows[i], highs[i], rows);
+		return table.toPositions(rows, foods);
+	}
+
+}
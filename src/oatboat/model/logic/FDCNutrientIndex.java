@@ -0,0 +1,178 @@
+package oatboat.model.logic;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import oatboat.model.food.NutrientSet;
+
+/**
+ * low memory alternative to {@link FDCNutrientTable}: holds only the byte
+ * offset and length of each food's block of rows in food_nutrient.csv. a food
+ * whose rows are split across the file has one block for each part.
+ * <p>
+ * a food's blocks are read from the file and decoded when its nutrient set is
+ * first requested. decoded values are kept in a small least-recently-used
+ * cache, so memory use stays fixed regardless of the size of the FDC release.
+ */
+public class FDCNutrientIndex {
+
+	// number of decoded foods kept in memory
+	private static final int CACHE_SIZE = 256;
+
+	private final File csv;
+	private final FDCNutrientCatalog catalog;
+	private final int[] ids;
+	private final long[] offsets;
+	private final int[] lengths;
+
+	private final Map<Integer, double[]> cache = new LinkedHashMap<Integer, double[]>(CACHE_SIZE, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, double[]> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private FDCNutrientIndex(File csv, FDCNutrientCatalog catalog, int[] ids, long[] offsets, int[] lengths) {
+		this.csv = csv;
+		this.catalog = catalog;
+		this.ids = ids;
+		this.offsets = offsets;
+		this.lengths = lengths;
+	}
+
+	/**
+	 * scan the nutrients file once, recording where the rows of each food begin
+	 * and end.
+	 *
+	 * @param csv      a local copy of food_nutrient.csv
+	 * @param catalog  the nutrients to read from each block
+	 * @param progress informed as the file is scanned
+	 * @return the index
+	 * @throws IOException if the file cannot be read
+	 */
+	public static FDCNutrientIndex build(File csv, FDCNutrientCatalog catalog, FDCNutrientParser.Progress progress)
+			throws IOException {
+		BlockCollector blocks = new BlockCollector();
+		FDCNutrientParser.scanBlocks(csv, blocks, progress);
+
+		int size = blocks.size;
+		int[] ids = new int[size];
+		long[] offsets = new long[size];
+		int[] lengths = new int[size];
+
+		// each block ends where the next begins, or at the end of the file. blocks
+		// are sorted by fdc id, then by position, so those of one food are adjacent
+		long fileEnd = csv.length();
+		long[] keys = new long[size];
+		for (int i = 0; i < size; i++)
+			keys[i] = ((long) blocks.ids[i] << 32) | i;
+		Arrays.sort(keys);
+
+		for (int i = 0; i < size; i++) {
+			int block = (int) keys[i];
+			long end = (block + 1 < size) ? blocks.offsets[block + 1] : fileEnd;
+			ids[i] = blocks.ids[block];
+			offsets[i] = blocks.offsets[block];
+			lengths[i] = (int) (end - blocks.offsets[block]);
+		}
+
+		return new FDCNutrientIndex(csv, catalog, ids, offsets, lengths);
+	}
+
+	/**
+	 * @return true if the file holds rows for the given food
+	 */
+	public boolean contains(int fdcID) {
+		return Arrays.binarySearch(ids, fdcID) >= 0;
+	}
+
+	/**
+	 * @return a new nutrient set for the given food, read from the file if it is
+	 *         not cached; or null if the food is not held or cannot be read
+	 */
+	public NutrientSet getNutrientSet(int fdcID) {
+		double[] values = getValues(fdcID);
+		return values == null ? null : new NutrientSet(values);
+	}
+
+	/**
+	 * @return a copy of every value held for the given food, in the order of the
+	 *         catalog's slots, read from the file if it is not cached; or null if
+	 *         the food is not held or cannot be read
+	 */
+	public double[] getValues(int fdcID) {
+		double[] values;
+		synchronized (cache) {
+			values = cache.get(fdcID);
+		}
+
+		if (values == null) {
+			values = readBlock(fdcID);
+			if (values == null)
+				return null;
+			synchronized (cache) {
+				cache.put(fdcID, values);
+			}
+		}
+
+		return values.clone();
+	}
+
+	private double[] readBlock(int fdcID) {
+		int first = Arrays.binarySearch(ids, fdcID);
+		if (first < 0)
+			return null;
+		while (first > 0 && ids[first - 1] == fdcID)
+			first--;
+
+		// every block of the food, in file order, so later rows replace earlier as
+		// they do in an FDCNutrientTable
+		double[] values = new double[catalog.size()];
+		try (FileChannel channel = FileChannel.open(csv.toPath(), StandardOpenOption.READ)) {
+			for (int block = first; block < ids.length && ids[block] == fdcID; block++) {
+				ByteBuffer buffer = ByteBuffer.allocate(lengths[block]);
+				long position = offsets[block];
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, position + buffer.position()) < 0)
+						break;
+				}
+
+				FDCNutrientParser.parse(buffer, 0, buffer.position(), catalog, (id, slot, amount) -> {
+					if (id == fdcID)
+						values[slot] = amount;
+				});
+			}
+		} catch (IOException e) {
+			return null;
+		}
+		return values;
+	}
+
+	// growable arrays of block starts, in file order
+	private static class BlockCollector implements FDCNutrientParser.BlockHandler {
+
+		private int[] ids = new int[1024];
+		private long[] offsets = new long[1024];
+		private int size = 0;
+
+		@Override
+		public void accept(int fdcID, long offset) {
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+				offsets = Arrays.copyOf(offsets, size * 2);
+			}
+			ids[size] = fdcID;
+			offsets[size] = offset;
+			size++;
+		}
+	}
+
+}
@@ -0,0 +1,427 @@
+package oatboat.model.logic;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+
+/**
+ * reads the FDC nutrients CSV (food_nutrient.csv) directly from a memory mapped
+ * copy of the file.
+ * <p>
+ * the quoted fdc_id, nutrient_id and amount columns of each row are converted
+ * to numbers straight from the bytes, so no String is created per row or per
+ * field. rows which cannot be read (e.g. the header row) are skipped, as are
+ * rows for nutrients outside the {@link FDCNutrientCatalog}: the nutrient_id is
+ * read first, and the rest of such a row is never parsed.
+ * <p>
+ * large files may be split at line boundaries into chunks which are parsed in
+ * parallel on the common fork-join pool, see
+ * {@link #parse(File, FDCNutrientCatalog, Supplier, BinaryOperator, Progress)}.
+ * <p>
+ * expected layout of each row, of which only columns 1 to 3 are read:
+ *
+ * <pre>
+ * "id","fdc_id","nutrient_id","amount","data_points", ...
+ * </pre>
+ */
+public class FDCNutrientParser {
+
+	/**
+	 * receives each successfully parsed row of the nutrients file which is held in
+	 * the catalog, in file order
+	 */
+	public interface RowHandler {
+		void accept(int fdcID, int slot, double amount);
+	}
+
+	/**
+	 * receives the fdc_id and absolute byte offset of each row at which the fdc_id
+	 * differs from the previous row
+	 */
+	public interface BlockHandler {
+		void accept(int fdcID, long offset);
+	}
+
+	/**
+	 * receives the amount of the file read so far, in steps of one chunk. may be
+	 * called from several threads at once.
+	 */
+	public interface Progress {
+		void advance(long bytes, long rows);
+
+		/**
+		 * @return true if reading should stop, tested before each chunk
+		 */
+		default boolean isCancelled() {
+			return false;
+		}
+	}
+
+	/**
+	 * a row handler which gathers the rows of one chunk of the file into a partial
+	 * result
+	 */
+	public interface ChunkHandler<T> extends RowHandler {
+		T result();
+	}
+
+	// a MappedByteBuffer is indexed by int, so larger files are mapped in regions
+	private static final long MAX_REGION = Integer.MAX_VALUE;
+
+	// chunks smaller than this are not split any further for parallel parsing
+	private static final int MIN_CHUNK = 8 * 1024 * 1024;
+
+	// amounts with more significant digits than this cannot be scaled exactly
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	/**
+	 * map the given file, split it at line boundaries into chunks, and parse the
+	 * chunks in parallel. every chunk is read by a fresh handler; the partial
+	 * results are then merged pairwise, always with the earlier chunk as the first
+	 * argument of the merger.
+	 * <p>
+	 * the rows of one fdc_id may straddle the boundary between two chunks, so the
+	 * merger must be able to combine partial results which share a key.
+	 *
+	 * @param csv      a local copy of food_nutrient.csv
+	 * @param catalog  the nutrients to keep
+	 * @param handlers creates a handler for each chunk
+	 * @param merger   combines the results of two adjacent chunks
+	 * @param progress informed as each chunk is parsed
+	 * @return the merged result of all chunks
+	 * @throws IOException           if the file cannot be opened or mapped
+	 * @throws CancellationException if the progress was cancelled before every
+	 *                               chunk was parsed
+	 */
+	public static <T> T parse(File csv, FDCNutrientCatalog catalog, Supplier<? extends ChunkHandler<T>> handlers,
+			BinaryOperator<T> merger, Progress progress) throws IOException {
+		try (FileChannel channel = FileChannel.open(csv.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			long start = 0;
+			T result = null;
+
+			do {
+				long length = Math.min(MAX_REGION, size - start);
+				MappedByteBuffer region = channel.map(MapMode.READ_ONLY, start, length);
+
+				int end = (int) length;
+				if (start + length < size)
+					end = lastLineEnd(region, end);
+
+				ChunkTask<T> task = new ChunkTask<T>(region, 0, end, catalog, handlers, merger, progress);
+				T partial = ForkJoinPool.commonPool().invoke(task);
+				result = (result == null) ? partial : merger.apply(result, partial);
+				start += end;
+			} while (start < size);
+
+			return result;
+		}
+	}
+
+	/**
+	 * map the given file and report where the block of rows for each fdc_id
+	 * begins. only the fdc_id column is read.
+	 *
+	 * @param csv      a local copy of food_nutrient.csv
+	 * @param handler  receives the start of each block
+	 * @param progress informed after each {@link #MIN_CHUNK} bytes
+	 * @throws IOException           if the file cannot be opened or mapped
+	 * @throws CancellationException if the progress was cancelled before the
+	 *                               whole file was scanned
+	 */
+	public static void scanBlocks(File csv, BlockHandler handler, Progress progress) throws IOException {
+		try (FileChannel channel = FileChannel.open(csv.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			long start = 0;
+			int fdcID = -1;
+
+			while (start < size) {
+				long length = Math.min(MAX_REGION, size - start);
+				MappedByteBuffer region = channel.map(MapMode.READ_ONLY, start, length);
+
+				int end = (int) length;
+				if (start + length < size)
+					end = lastLineEnd(region, end);
+
+				int pos = 0;
+				int reported = 0;
+				long rows = 0;
+				while (pos < end) {
+					int lineEnd = pos;
+					while (lineEnd < end && region.get(lineEnd) != '\n')
+						lineEnd++;
+
+					int c0 = nextComma(region, pos, lineEnd);
+					int c1 = nextComma(region, c0 + 1, lineEnd);
+					int nextFdcID = parseInt(region, c0 + 1, c1);
+
+					if (nextFdcID >= 0 && nextFdcID != fdcID) {
+						fdcID = nextFdcID;
+						handler.accept(fdcID, start + pos);
+					}
+					pos = lineEnd + 1;
+					rows++;
+
+					if (pos - reported >= MIN_CHUNK || pos >= end) {
+						progress.advance(Math.min(pos, end) - reported, rows);
+						reported = Math.min(pos, end);
+						rows = 0;
+						checkCancelled(progress);
+					}
+				}
+				start += end;
+			}
+		}
+	}
+
+	/**
+	 * parse the rows held between two positions of a buffer. the range is expected
+	 * to start at the beginning of a line.
+	 *
+	 * @param buffer  bytes of the nutrients file
+	 * @param from    index of the first byte to read
+	 * @param to      index after the last byte to read
+	 * @param catalog the nutrients to keep
+	 * @param handler receives each row
+	 * @return the number of lines read
+	 */
+	public static int parse(ByteBuffer buffer, int from, int to, FDCNutrientCatalog catalog, RowHandler handler) {
+		int pos = from;
+		int lines = 0;
+		while (pos < to) {
+			int lineEnd = pos;
+			while (lineEnd < to && buffer.get(lineEnd) != '\n')
+				lineEnd++;
+
+			parseRow(buffer, pos, lineEnd, catalog, handler);
+			pos = lineEnd + 1;
+			lines++;
+		}
+		return lines;
+	}
+
+	/**
+	 * @return the index after the final line break within the first 'limit' bytes
+	 *         of the buffer, or 'limit' if no line break is found
+	 */
+	static int lastLineEnd(ByteBuffer buffer, int limit) {
+		for (int i = limit - 1; i >= 0; i--) {
+			if (buffer.get(i) == '\n')
+				return i + 1;
+		}
+		return limit;
+	}
+
+	private static void parseRow(ByteBuffer buffer, int start, int end, FDCNutrientCatalog catalog,
+			RowHandler handler) {
+		// locate the separators around columns 1 (fdc_id), 2 (nutrient_id) and 3
+		// (amount)
+		int c0 = nextComma(buffer, start, end);
+		int c1 = nextComma(buffer, c0 + 1, end);
+		int c2 = nextComma(buffer, c1 + 1, end);
+		if (c2 >= end)
+			return;
+
+		// decide from the nutrient whether the rest of the row is needed at all
+		int slot = catalog.slot(parseInt(buffer, c1 + 1, c2));
+		if (slot < 0)
+			return;
+
+		int fdcID = parseInt(buffer, c0 + 1, c1);
+		if (fdcID < 0)
+			return;
+
+		int c3 = nextComma(buffer, c2 + 1, end);
+		double amount = parseDouble(buffer, c2 + 1, c3);
+		if (Double.isNaN(amount))
+			return;
+
+		handler.accept(fdcID, slot, amount);
+	}
+
+	private static int nextComma(ByteBuffer buffer, int from, int end) {
+		int i = from;
+		while (i < end && buffer.get(i) != ',')
+			i++;
+		return i;
+	}
+
+	/**
+	 * read a quoted, non-negative integer
+	 *
+	 * @return the value, or -1 if the field holds anything else
+	 */
+	static int parseInt(ByteBuffer buffer, int from, int to) {
+		from = skipOpeningQuote(buffer, from, to);
+		to = skipClosingQuote(buffer, from, to);
+		if (from >= to || to - from > 9)
+			return -1;
+
+		int value = 0;
+		for (int i = from; i < to; i++) {
+			int digit = buffer.get(i) - '0';
+			if (digit < 0 || digit > 9)
+				return -1;
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	/**
+	 * read a quoted decimal number, optionally signed and with an exponent. the
+	 * result is identical to {@link Double#parseDouble(String)}.
+	 *
+	 * @return the value, or NaN if the field does not hold a number
+	 */
+	static double parseDouble(ByteBuffer buffer, int from, int to) {
+		from = skipOpeningQuote(buffer, from, to);
+		to = skipClosingQuote(buffer, from, to);
+		if (from >= to)
+			return Double.NaN;
+
+		int i = from;
+		boolean negative = false;
+		byte b = buffer.get(i);
+		if (b == '-' || b == '+') {
+			negative = b == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int scale = 0;
+		int digits = 0;
+		boolean point = false;
+
+		for (; i < to; i++) {
+			b = buffer.get(i);
+			if (b >= '0' && b <= '9') {
+				if (mantissa >= MAX_EXACT_MANTISSA / 10)
+					return slowParse(buffer, from, to);
+				mantissa = mantissa * 10 + (b - '0');
+				digits++;
+				if (point)
+					scale++;
+			} else if (b == '.' && !point) {
+				point = true;
+			} else {
+				break;
+			}
+		}
+
+		if (digits == 0)
+			return Double.NaN;
+
+		if (i < to) {
+			if (b != 'e' && b != 'E')
+				return Double.NaN;
+			return slowParse(buffer, from, to);
+		}
+
+		if (scale >= POWERS_OF_TEN.length)
+			return slowParse(buffer, from, to);
+
+		// both operands are exact, so the division is correctly rounded
+		double value = mantissa / POWERS_OF_TEN[scale];
+		return negative ? -value : value;
+	}
+
+	// fallback for uncommon notations: too many digits, or an exponent
+	private static double slowParse(ByteBuffer buffer, int from, int to) {
+		byte[] bytes = new byte[to - from];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = buffer.get(from + i);
+		try {
+			return Double.parseDouble(new String(bytes, StandardCharsets.US_ASCII));
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+
+	private static void checkCancelled(Progress progress) {
+		if (progress.isCancelled())
+			throw new CancellationException("parsing cancelled");
+	}
+
+	private static int skipOpeningQuote(ByteBuffer buffer, int from, int to) {
+		return (from < to && buffer.get(from) == '"') ? from + 1 : from;
+	}
+
+	private static int skipClosingQuote(ByteBuffer buffer, int from, int to) {
+		// tolerate windows line endings on the final column
+		if (to > from && buffer.get(to - 1) == '\r')
+			to--;
+		return (to > from && buffer.get(to - 1) == '"') ? to - 1 : to;
+	}
+
+	/**
+	 * parses one range of a mapped region, splitting it in two at a line boundary
+	 * while it remains larger than {@link #MIN_CHUNK}. the region is only read by
+	 * absolute index, so it is safely shared between the tasks.
+	 */
+	private static class ChunkTask<T> extends RecursiveTask<T> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final ByteBuffer region;
+		private final int from;
+		private final int to;
+		private final FDCNutrientCatalog catalog;
+		private final Supplier<? extends ChunkHandler<T>> handlers;
+		private final BinaryOperator<T> merger;
+		private final Progress progress;
+
+		private ChunkTask(ByteBuffer region, int from, int to, FDCNutrientCatalog catalog,
+				Supplier<? extends ChunkHandler<T>> handlers, BinaryOperator<T> merger, Progress progress) {
+			this.region = region;
+			this.from = from;
+			this.to = to;
+			this.catalog = catalog;
+			this.handlers = handlers;
+			this.merger = merger;
+			this.progress = progress;
+		}
+
+		@Override
+		protected T compute() {
+			if (to - from > 2 * MIN_CHUNK) {
+				int middle = nextLineStart(region, from + (to - from) / 2, to);
+				if (middle < to) {
+					ChunkTask<T> left = new ChunkTask<T>(region, from, middle, catalog, handlers, merger,
+							progress);
+					ChunkTask<T> right = new ChunkTask<T>(region, middle, to, catalog, handlers, merger,
+							progress);
+					right.fork();
+					T leftResult = left.compute();
+					return merger.apply(leftResult, right.join());
+				}
+			}
+
+			checkCancelled(progress);
+			ChunkHandler<T> handler = handlers.get();
+			int rows = parse(region, from, to, catalog, handler);
+			progress.advance(to - from, rows);
+			return handler.result();
+		}
+
+		private static int nextLineStart(ByteBuffer buffer, int from, int to) {
+			int i = from;
+			while (i < to && buffer.get(i) != '\n')
+				i++;
+			return i + 1;
+		}
+	}
+
+}
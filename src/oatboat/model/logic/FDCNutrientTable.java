@@ -0,0 +1,337 @@
+package oatboat.model.logic;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import oatboat.model.food.NutrientSet;
+
+/**
+ * compact, read-only store of the nutrient values of every food in the FDC
+ * data.
+ * <p>
+ * fdc ids are held in one sorted int array; the values are held in one double
+ * array (column) per nutrient of the {@link FDCNutrientCatalog}, in the order
+ * of its slots, each holding the value of every food in the order of the ids.
+ * a food is found by binary search, and a NutrientSet is only created when one
+ * is requested.
+ * <p>
+ * a nutrient which the file gives no row for is held as NaN, so that it is
+ * told apart from a measured zero. it is read as zero by
+ * {@link #getValues(int)} and {@link #getNutrientSet(int)}, and lies outside
+ * every range.
+ * <p>
+ * a column can be scanned in one tight loop over a primitive array, so a range
+ * of one nutrient is tested across every food in a few milliseconds: see
+ * {@link FDCNutrientFilter}.
+ * <p>
+ * tables are created with a {@link Builder}, or read back from the bytes
+ * written by {@link #writeTo(DataOutputStream)}.
+ */
+public class FDCNutrientTable {
+
+	private final int[] ids;
+	private final double[][] columns;
+
+	private FDCNutrientTable(int[] ids, double[][] columns) {
+		this.ids = ids;
+		this.columns = columns;
+	}
+
+	/**
+	 * @return the number of foods held
+	 */
+	public int size() {
+		return ids.length;
+	}
+
+	/**
+	 * @return the row of the given food, or a negative number if it is not held
+	 */
+	public int indexOf(int fdcID) {
+		return Arrays.binarySearch(ids, fdcID);
+	}
+
+	/**
+	 * @return the fdc id of the food in the given row
+	 */
+	int getID(int row) {
+		return ids[row];
+	}
+
+	/**
+	 * @return the value of one nutrient for every food, in the order of the rows,
+	 *         or NaN where a food has none. the column is not copied, so must not
+	 *         be changed
+	 */
+	double[] getColumn(int slot) {
+		return columns[slot];
+	}
+
+	/**
+	 * @return a new nutrient set holding the values of the given food, or null if
+	 *         the food is not held
+	 */
+	public NutrientSet getNutrientSet(int fdcID) {
+		double[] found = getValues(fdcID);
+		return found == null ? null : new NutrientSet(found);
+	}
+
+	/**
+	 * @return a copy of every value held for the given food, in the order of the
+	 *         catalog's slots, with zero for nutrients it has none of; or null if
+	 *         the food is not held
+	 */
+	public double[] getValues(int fdcID) {
+		int row = indexOf(fdcID);
+		if (row < 0)
+			return null;
+
+		double[] found = new double[columns.length];
+		for (int slot = 0; slot < columns.length; slot++) {
+			double value = columns[slot][row];
+			found[slot] = Double.isNaN(value) ? 0 : value;
+		}
+		return found;
+	}
+
+	/**
+	 * @param rows the rows to keep
+	 * @return a table of only the given rows, or this table if it is every row
+	 */
+	FDCNutrientTable retain(BitSet rows) {
+		int size = rows.cardinality();
+		if (size == ids.length)
+			return this;
+
+		int[] keptIds = new int[size];
+		double[][] keptColumns = new double[columns.length][size];
+		int kept = 0;
+		for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+			keptIds[kept] = ids[row];
+			for (int slot = 0; slot < columns.length; slot++)
+				keptColumns[slot][kept] = columns[slot][row];
+			kept++;
+		}
+		return new FDCNutrientTable(keptIds, keptColumns);
+	}
+
+	/**
+	 * clear the bit of every row whose value of the given nutrient lies outside
+	 * the range, or which has no value of it: NaN fails both comparisons. the bits
+	 * are set 64 rows at a time, without branching, so the loop is a plain scan of
+	 * the column.
+	 *
+	 * @param slot position of the nutrient, see {@link FDCNutrientCatalog}
+	 * @param low  the least value kept
+	 * @param high the greatest value kept
+	 * @param rows one bit per row of the table, as made by {@link #allRows()}
+	 */
+	void retainRange(int slot, double low, double high, long[] rows) {
+		double[] column = columns[slot];
+		for (int word = 0; word < rows.length; word++) {
+			if (rows[word] == 0)
+				continue;
+
+			int from = word << 6;
+			int to = Math.min(from + 64, column.length);
+			long kept = 0;
+			for (int row = from; row < to; row++) {
+				double value = column[row];
+				kept |= (value >= low & value <= high ? 1L : 0L) << (row - from);
+			}
+			rows[word] &= kept;
+		}
+	}
+
+	/**
+	 * @return one bit per row of the table, every bit set
+	 */
+	long[] allRows() {
+		long[] rows = new long[(ids.length + 63) >>> 6];
+		Arrays.fill(rows, -1L);
+		if ((ids.length & 63) != 0)
+			rows[rows.length - 1] = -1L >>> (64 - (ids.length & 63));
+		return rows;
+	}
+
+	/**
+	 * @param rows  one bit per row of the table
+	 * @param foods a catalog of foods, also in order of fdc id
+	 * @return the catalog positions of the foods whose rows are set. both are in
+	 *         order of fdc id, so they are walked together once
+	 */
+	BitSet toPositions(long[] rows, FDCFoodCatalog foods) {
+		BitSet positions = new BitSet(foods.size());
+		int position = 0;
+		for (int word = 0; word < rows.length; word++) {
+			for (long bits = rows[word]; bits != 0; bits &= bits - 1) {
+				int fdcID = ids[(word << 6) + Long.numberOfTrailingZeros(bits)];
+				while (position < foods.size() && foods.getID(position) < fdcID)
+					position++;
+				if (position == foods.size())
+					return positions;
+				if (foods.getID(position) == fdcID)
+					positions.set(position);
+			}
+		}
+		return positions;
+	}
+
+	/**
+	 * write the table as: the number of values per food, the number of foods, the
+	 * sorted fdc ids, then the column of each nutrient
+	 */
+	void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(columns.length);
+		out.writeInt(ids.length);
+		for (int id : ids)
+			out.writeInt(id);
+		for (double[] column : columns) {
+			for (double value : column)
+				out.writeDouble(value);
+		}
+	}
+
+	/**
+	 * read a table written by {@link #writeTo(DataOutputStream)}, starting at the
+	 * current position of the buffer. the position is advanced past the table.
+	 */
+	static FDCNutrientTable readFrom(ByteBuffer buffer) {
+		int width = buffer.getInt();
+		int size = buffer.getInt();
+		int[] ids = new int[size];
+		double[][] columns = new double[width][size];
+
+		buffer.asIntBuffer().get(ids);
+		buffer.position(buffer.position() + size * Integer.BYTES);
+		for (double[] column : columns) {
+			buffer.asDoubleBuffer().get(column);
+			buffer.position(buffer.position() + size * Double.BYTES);
+		}
+
+		return new FDCNutrientTable(ids, columns);
+	}
+
+	/**
+	 * advance the buffer past a table written by
+	 * {@link #writeTo(DataOutputStream)}, without reading it
+	 */
+	static void skip(ByteBuffer buffer) {
+		int width = buffer.getInt();
+		int size = buffer.getInt();
+		buffer.position(buffer.position() + size * (Integer.BYTES + width * Double.BYTES));
+	}
+
+	/**
+	 * gathers nutrient values food by food, in any order, and produces a table.
+	 * values for one food are expected to arrive together, but foods which are
+	 * split (e.g. across two chunks of a file) are recombined when the table is
+	 * built. values never set are NaN.
+	 */
+	public static class Builder {
+
+		private final int width;
+		private int[] ids = new int[1024];
+		private double[] values;
+		private int size = 0;
+		private boolean sorted = true;
+
+		/**
+		 * @param width the number of values held for each food
+		 */
+		public Builder(int width) {
+			this.width = width;
+			this.values = new double[1024 * width];
+		}
+
+		/**
+		 * store one value for a food, starting a new row if the food differs from the
+		 * previous call
+		 *
+		 * @param fdcID the food
+		 * @param slot  position of the nutrient, see {@link FDCNutrientCatalog}
+		 * @param value the amount of the nutrient
+		 */
+		public void set(int fdcID, int slot, double value) {
+			if (size == 0 || ids[size - 1] != fdcID)
+				addRow(fdcID);
+			values[(size - 1) * width + slot] = value;
+		}
+
+		/**
+		 * append the rows of a builder which holds foods found later in the file
+		 *
+		 * @return this builder
+		 */
+		public Builder append(Builder later) {
+			for (int row = 0; row < later.size; row++) {
+				addRow(later.ids[row]);
+				System.arraycopy(later.values, row * width, values, (size - 1) * width, width);
+			}
+			return this;
+		}
+
+		/**
+		 * sort the rows by fdc id, combine any rows which belong to the same food, and
+		 * divide the values into columns
+		 */
+		public FDCNutrientTable build() {
+			int[] orderedIds = Arrays.copyOf(ids, size);
+			double[] orderedValues = Arrays.copyOf(values, size * width);
+
+			if (!sorted) {
+				// sort fdc id and row number together, then copy rows into that order
+				long[] keys = new long[size];
+				for (int row = 0; row < size; row++)
+					keys[row] = ((long) ids[row] << 32) | row;
+				Arrays.sort(keys);
+
+				for (int i = 0; i < size; i++) {
+					int row = (int) keys[i];
+					orderedIds[i] = ids[row];
+					System.arraycopy(values, row * width, orderedValues, i * width, width);
+				}
+			}
+
+			// collapse adjacent rows of the same food, keeping every value found
+			int count = 0;
+			for (int row = 0; row < size; row++) {
+				if (count > 0 && orderedIds[count - 1] == orderedIds[row]) {
+					for (int slot = 0; slot < width; slot++) {
+						double value = orderedValues[row * width + slot];
+						if (!Double.isNaN(value))
+							orderedValues[(count - 1) * width + slot] = value;
+					}
+				} else {
+					orderedIds[count] = orderedIds[row];
+					System.arraycopy(orderedValues, row * width, orderedValues, count * width, width);
+					count++;
+				}
+			}
+
+			double[][] columns = new double[width][count];
+			for (int row = 0; row < count; row++) {
+				for (int slot = 0; slot < width; slot++)
+					columns[slot][row] = orderedValues[row * width + slot];
+			}
+			return new FDCNutrientTable(Arrays.copyOf(orderedIds, count), columns);
+		}
+
+		private void addRow(int fdcID) {
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+				values = Arrays.copyOf(values, size * 2 * width);
+			}
+			if (size > 0 && fdcID < ids[size - 1])
+				sorted = false;
+
+			ids[size] = fdcID;
+			Arrays.fill(values, size * width, (size + 1) * width, Double.NaN);
+			size++;
+		}
+	}
+
+}
@@ -0,0 +1,290 @@
+package oatboat.model.logic;
+
+import java.util.Arrays;
+
+import oatboat.model.food.NutrientSet;
+
+/**
+ * k-d tree over the {@link NutrientSet} values of the foods of an
+ * {@link FDCNutrientTable}, for finding the foods with the closest nutrient
+ * profile to a given one (e.g. a substitute for an ingredient no longer
+ * available). only foods with a value of every nutrient are held.
+ * <p>
+ * each nutrient is scaled by its standard deviation across the foods held, so
+ * that kJ and grams of salt weigh alike, and distance is the Euclidean distance
+ * between scaled values; further per-nutrient weights may be given with each
+ * query.
+ * <p>
+ * the tree is implicit: the foods are reordered so that each range of them is
+ * split at its middle food by the nutrient along which the range is widest,
+ * with lesser values before and greater after. only the split nutrient of each
+ * middle food is stored besides the values. a query descends to the nearest
+ * foods first, and skips every range which cannot hold a food closer than the
+ * k found so far.
+ */
+public class FDCNutrientTree {
+
+	// ranges of this many foods or fewer are scanned rather than split
+	private static final int LEAF_SIZE = 8;
+
+	private static final int DIMENSIONS = NutrientSet.NUT_INDEX;
+
+	private static final int KJ_AXIS = FDCNutrientCatalog.DEFAULT.slot(FDCNutrientCatalog.ENERGY_KJ);
+	private static final int KCAL_AXIS = FDCNutrientCatalog.DEFAULT.slot(FDCNutrientCatalog.ENERGY_KCAL);
+	private static final double KJ_PER_KCAL = 4.184;
+
+	private final int[] ids;
+	private final double[] points;
+	private final double[] scales;
+	private final byte[] axes;
+
+	private FDCNutrientTree(int[] ids, double[] points, double[] scales, byte[] axes) {
+		this.ids = ids;
+		this.points = points;
+		this.scales = scales;
+		this.axes = axes;
+	}
+
+	/**
+	 * build a tree of the foods of the table which have a value of every nutrient
+	 * of a NutrientSet. energy given only in kJ or only in kcal is converted to
+	 * the other; foods missing any other nutrient are left out, rather than be
+	 * taken for foods holding none of it.
+	 */
+	public static FDCNutrientTree build(FDCNutrientTable table) {
+		double[][] columns = new double[DIMENSIONS][];
+		for (int axis = 0; axis < DIMENSIONS; axis++)
+			columns[axis] = table.getColumn(axis);
+
+		int[] rows = new int[table.size()];
+		int size = 0;
+		for (int row = 0; row < table.size(); row++) {
+			boolean complete = true;
+			for (int axis = 0; axis < DIMENSIONS && complete; axis++)
+				complete = !Double.isNaN(value(columns, axis, row));
+			if (complete)
+				rows[size++] = row;
+		}
+
+		int[] ids = new int[size];
+		double[] points = new double[size * DIMENSIONS];
+		for (int i = 0; i < size; i++) {
+			ids[i] = table.getID(rows[i]);
+			for (int axis = 0; axis < DIMENSIONS; axis++)
+				points[i * DIMENSIONS + axis] = value(columns, axis, rows[i]);
+		}
+
+		double[] scales = new double[DIMENSIONS];
+		for (int axis = 0; axis < DIMENSIONS; axis++) {
+			double sum = 0, squares = 0;
+			for (int i = 0; i < size; i++) {
+				double value = points[i * DIMENSIONS + axis];
+				sum += value;
+				squares += value * value;
+			}
+			double mean = sum / Math.max(1, size);
+			double deviation = Math.sqrt(Math.max(0, squares / Math.max(1, size) - mean * mean));
+			scales[axis] = deviation > 0 ? 1 / deviation : 1;
+
+			for (int i = 0; i < size; i++)
+				points[i * DIMENSIONS + axis] *= scales[axis];
+		}
+
+		FDCNutrientTree tree = new FDCNutrientTree(ids, points, scales, new byte[size]);
+		tree.split(0, size);
+		return tree;
+	}
+
+	/**
+	 * @return the value of a nutrient in a row of the table, converting energy
+	 *         between kJ and kcal where only one is given; or NaN if it has none
+	 */
+	private static double value(double[][] columns, int axis, int row) {
+		double value = columns[axis][row];
+		if (Double.isNaN(value) && axis == KJ_AXIS)
+			return columns[KCAL_AXIS][row] * KJ_PER_KCAL;
+		if (Double.isNaN(value) && axis == KCAL_AXIS)
+			return columns[KJ_AXIS][row] / KJ_PER_KCAL;
+		return value;
+	}
+
+	/**
+	 * @return the number of foods held
+	 */
+	public int size() {
+		return ids.length;
+	}
+
+	/**
+	 * @param nutrients the values of a NutrientSet, see
+	 *                  {@link NutrientSet#getAllValues()}
+	 * @param k         the number of foods to find
+	 * @param weights   how much a difference in each nutrient counts, in the order
+	 *                  of the nutrients; or null to count every nutrient alike
+	 * @return the fdc ids of the k foods closest to the given nutrients, closest
+	 *         first
+	 */
+	public int[] nearest(double[] nutrients, int k, double[] weights) {
+		if (weights == null) {
+			weights = new double[DIMENSIONS];
+			Arrays.fill(weights, 1);
+		} else if (weights.length != DIMENSIONS) {
+			throw new IllegalArgumentException("expected " + DIMENSIONS + " weights, not " + weights.length);
+		}
+
+		if (k <= 0 || ids.length == 0)
+			return new int[0];
+
+		double[] query = new double[DIMENSIONS];
+		for (int axis = 0; axis < DIMENSIONS; axis++)
+			query[axis] = nutrients[axis] * scales[axis];
+
+		Neighbours found = new Neighbours(Math.min(k, ids.length));
+		search(0, ids.length, query, weights, found);
+
+		int[] nearest = new int[found.count];
+		for (int i = 0; i < found.count; i++)
+			nearest[i] = ids[found.positions[i]];
+		return nearest;
+	}
+
+	private void search(int from, int to, double[] query, double[] weights, Neighbours found) {
+		if (to - from <= LEAF_SIZE) {
+			for (int position = from; position < to; position++)
+				found.offer(position, distance(position, query, weights));
+			return;
+		}
+
+		int middle = (from + to) >>> 1;
+		int axis = axes[middle];
+		double difference = query[axis] - points[middle * DIMENSIONS + axis];
+		found.offer(middle, distance(middle, query, weights));
+
+		// the nearer side first, then the farther only if it may hold a closer food
+		boolean before = difference < 0;
+		search(before ? from : middle + 1, before ? middle : to, query, weights, found);
+		if (weights[axis] * difference * difference < found.worst())
+			search(before ? middle + 1 : from, before ? to : middle, query, weights, found);
+	}
+
+	private double distance(int position, double[] query, double[] weights) {
+		double distance = 0;
+		int offset = position * DIMENSIONS;
+		for (int axis = 0; axis < DIMENSIONS; axis++) {
+			double difference = query[axis] - points[offset + axis];
+			distance += weights[axis] * difference * difference;
+		}
+		return distance;
+	}
+
+	/**
+	 * order the foods of a range about its middle food, along its widest
+	 * nutrient, then each half in turn
+	 */
+	private void split(int from, int to) {
+		if (to - from <= LEAF_SIZE)
+			return;
+
+		int axis = widest(from, to);
+		int middle = (from + to) >>> 1;
+		select(from, to, middle, axis);
+		axes[middle] = (byte) axis;
+
+		split(from, middle);
+		split(middle + 1, to);
+	}
+
+	private int widest(int from, int to) {
+		int widest = 0;
+		double widestSpread = -1;
+		for (int axis = 0; axis < DIMENSIONS; axis++) {
+			double least = Double.POSITIVE_INFINITY, greatest = Double.NEGATIVE_INFINITY;
+			for (int position = from; position < to; position++) {
+				double value = points[position * DIMENSIONS + axis];
+				least = Math.min(least, value);
+				greatest = Math.max(greatest, value);
+			}
+			if (greatest - least > widestSpread) {
+				widestSpread = greatest - least;
+				widest = axis;
+			}
+		}
+		return widest;
+	}
+
+	/**
+	 * reorder the range so that the food at the given position holds the value it
+	 * would hold were the range sorted along the axis, with no greater values
+	 * before it and no lesser values after (quickselect)
+	 */
+	private void select(int from, int to, int nth, int axis) {
+		int low = from, high = to - 1;
+		while (low < high) {
+			double pivot = value(low + high >>> 1, axis);
+			int i = low, j = high;
+			while (i <= j) {
+				while (value(i, axis) < pivot)
+					i++;
+				while (value(j, axis) > pivot)
+					j--;
+				if (i <= j)
+					swap(i++, j--);
+			}
+			if (nth <= j)
+				high = j;
+			else if (nth >= i)
+				low = i;
+			else
+				return;
+		}
+	}
+
+	private double value(int position, int axis) {
+		return points[position * DIMENSIONS + axis];
+	}
+
+	private void swap(int a, int b) {
+		int id = ids[a];
+		ids[a] = ids[b];
+		ids[b] = id;
+		for (int axis = 0; axis < DIMENSIONS; axis++) {
+			double value = points[a * DIMENSIONS + axis];
+			points[a * DIMENSIONS + axis] = points[b * DIMENSIONS + axis];
+			points[b * DIMENSIONS + axis] = value;
+		}
+	}
+
+	// the closest foods found so far, closest first
+	private static class Neighbours {
+
+		private final int[] positions;
+		private final double[] distances;
+		private int count = 0;
+
+		private Neighbours(int k) {
+			positions = new int[k];
+			distances = new double[k];
+		}
+
+		/**
+		 * @return the distance a food must be within to be kept
+		 */
+		private double worst() {
+			return count < positions.length ? Double.POSITIVE_INFINITY : distances[count - 1];
+		}
+
+		private void offer(int position, double distance) {
+			if (distance >= worst())
+				return;
+
+			int at = count < positions.length ? count++ : count - 1;
+			for (; at > 0 && distances[at - 1] > distance; at--) {
+				positions[at] = positions[at - 1];
+				distances[at] = distances[at - 1];
+			}
+			positions[at] = position;
+			distances[at] = distance;
+		}
+	}
+
+}
@@ -1,50 +1,436 @@
 package oatboat.model.logic;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
 import java.util.stream.Collectors;
 
+/**
+ * keyword search over the foods of an {@link FDCFoodCatalog}, which is held in
+ * memory; searching involves no file access.
+ * <p>
+ * each keyword is looked up in an {@link FDCTokenIndex} built when the search is
+ * created, and the foods matching every keyword are found by intersecting the
+ * resulting posting lists, shortest first.
+ * <p>
+ * the last query and its matches are kept. when a query refines the last one
+ * (as when another letter is typed) only the previous matches can match the new
+ * query, so these are checked directly against the descriptions rather than
+ * searched for again.
+ * <p>
+ * matches are ranked by a BM25 score: a keyword found as a whole word counts
+ * for more than one found at the start of a word, which counts for more than
+ * one found within a word; keywords found in fewer descriptions weigh more; and
+ * shorter descriptions are preferred. how each keyword is found is read from
+ * the postings of the index rather than from the descriptions, so ranking costs
+ * a few array reads per match. only the best matches are kept, in a priority
+ * queue bounded by the number requested.
+ * <p>
+ * when fewer than {@value #FEW_MATCHES} foods match as typed, keywords of four
+ * or more characters are also matched against misspelt words (one edit apart, or two
+ * for keywords of eight or more characters). foods found only this way rank
+ * below every food matching all keywords as typed. this depends only on the
+ * query, not on the number of foods requested, so each page of results for a
+ * query is drawn from the same matches.
+ * <p>
+ * a keyword written as a number also matches the food with that fdc id, found
+ * directly in the catalog, and with four or more digits the foods whose ids
+ * begin with it.
+ * <p>
+ * a search may be confined to a set of foods, e.g. those found by an
+ * {@link FDCNutrientFilter}; the matches of each query are narrowed to these
+ * before they are ranked.
+ */
 public class FDCSearch {
+
+	// foods checked between tests for cancellation
+	private static final int CANCEL_INTERVAL = 4096;
+
+	// BM25 saturation and length normalisation
+	private static final double K1 = 1.2;
+	private static final double B = 0.75;
+
+	// weight of a keyword found as a whole word, at the start of a word, or within
+	private static final double WORD = 1.0;
+	private static final double PREFIX = 0.5;
+	private static final double PARTIAL = 0.25;
+	private static final double FUZZY = 0.1;
+
+	// fewest foods matching as typed for which misspelt words are not matched
+	private static final int FEW_MATCHES = 50;
+
+	// shortest number matched against the leading digits of fdc ids
+	private static final int ID_PREFIX = 4;
+
+	// shortest keywords matched to within one and two edits
+	private static final int ONE_EDIT = 4;
+	private static final int TWO_EDITS = 8;
+
+	// exact matches first, then the highest score, then the shorter description, then the lower fdc id
+	private static final Comparator<Ranked> BEST_FIRST = (a, b) -> {
+		int order = Boolean.compare(b.exact, a.exact);
+		if (order == 0)
+			order = Double.compare(b.score, a.score);
+		if (order == 0)
+			order = Integer.compare(a.length, b.length);
+		return order != 0 ? order : Integer.compare(a.position, b.position);
+	};
+
+	private final FDCFoodCatalog foods;
+	private final FDCTokenIndex index;
+
+	// the last query answered, shared by every window using this search
+	private volatile Query last;
+
+	/**
+	 * prepare a search over the given foods with an existing index of them
+	 */
+	public FDCSearch(FDCFoodCatalog foods, FDCTokenIndex index) {
+		this.foods = foods;
+		this.index = index;
+	}
+
+	public FDCFoodCatalog getFoods() {
+		return foods;
+	}
+
 	/**
 	 * takes any number of keywords separated either by spaces or commas, and
-	 * returns a map of matching results from the CSV file food.csv if it is present
-	 * in the ~/fdc folder wherever the main application is being exectued from.
+	 * returns the best matching foods from the catalog of foods read from the CSV
+	 * file food.csv.
 	 * <p>
-	 * search is blind to upper and lower case usage, thus will return all results
-	 * regardless of case.
+	 * search is blind to upper and lower case usage and to diacritics, thus will
+	 * return all results regardless of case or accents.
 	 * <p>
 	 * 
 	 * @param searchString raw input from the user
-	 * @return a hashmap of FDC food descriptions and fdc ID numbers
+	 * @param limit        the greatest number of foods to return
+	 * @return the best matches, in order of relevance
 	 */
-	public static Map<String, Integer> getResults(String searchString) {
+	public FDCSearchResults getResults(String searchString, int limit) {
+		return getResults(searchString, limit, () -> false);
+	}
 
-		Map<Integer, String> foodList = FDCDatabase.getFoodList();
-		Map<String, Integer> results = new HashMap<String, Integer>();
+	/**
+	 * as {@link #getResults(String, int)}, for searches which may be abandoned
+	 * part way through; a search which is abandoned is not kept as the last query.
+	 *
+	 * @param searchString raw input from the user
+	 * @param limit        the greatest number of foods to return
+	 * @param cancelled    tested regularly while searching
+	 * @return the best matches, in order of relevance
+	 * @throws CancellationException if the search was cancelled before it
+	 *                               finished
+	 */
+	public FDCSearchResults getResults(String searchString, int limit, BooleanSupplier cancelled) {
+		return getResults(searchString, limit, null, cancelled);
+	}
+
+	/**
+	 * as {@link #getResults(String, int, BooleanSupplier)}, finding only foods
+	 * among those given. with no keywords, every one of the given foods matches.
+	 *
+	 * @param searchString raw input from the user
+	 * @param limit        the greatest number of foods to return
+	 * @param allowed      catalog positions of the foods which may match, or null
+	 *                     for every food
+	 * @param cancelled    tested regularly while searching
+	 * @return the best matches, in order of relevance
+	 * @throws CancellationException if the search was cancelled before it
+	 *                               finished
+	 */
+	public FDCSearchResults getResults(String searchString, int limit, BitSet allowed, BooleanSupplier cancelled) {
 
 		List<String> keywords = getSearchTerms(searchString);
-		boolean found = false;
-
-		for (Integer fdcID : foodList.keySet()) {
-			found = true;
-			for (String thisQuery : keywords) {
-				if (foodList.get(fdcID).toLowerCase().contains(thisQuery.toLowerCase()) || thisQuery.equals(fdcID.toString()))
-					continue;
-				else
-					found = false;
+		if (keywords.isEmpty() && allowed != null) {
+			int[] matches = allowed.stream().toArray();
+			return new FDCSearchResults(best(matches, keywords, limit, false, cancelled), matches.length);
+		}
+		if (keywords.isEmpty())
+			return new FDCSearchResults(new LinkedHashMap<Integer, String>(), 0);
+
+		Query previous = last;
+		int[] matches;
+		if (previous != null && previous.isRefinedBy(keywords)) {
+			matches = refine(previous.matches, keywords, cancelled);
+		} else {
+			int[][] postings = new int[keywords.size()][];
+			for (int k = 0; k < postings.length; k++) {
+				checkCancelled(cancelled);
+				postings[k] = find(keywords.get(k));
 			}
-			if (found)
-				results.put(foodList.get(fdcID), fdcID);
+			matches = FDCTokenIndex.intersect(postings);
 		}
-		return results;
+		checkCancelled(cancelled);
+		last = new Query(keywords, matches);
+
+		matches = retain(matches, allowed);
+		boolean fuzzy = matches.length < FEW_MATCHES;
+		if (fuzzy)
+			matches = retain(findFuzzy(keywords, matches, cancelled), allowed);
+
+		return new FDCSearchResults(best(matches, keywords, limit, fuzzy, cancelled), matches.length);
+	}
+
+	/**
+	 * @return the fdc ids & descriptions of the best matches, best first
+	 */
+	private Map<Integer, String> best(int[] matches, List<String> keywords, int limit, boolean fuzzy,
+			BooleanSupplier cancelled) {
+		Map<Integer, String> best = new LinkedHashMap<Integer, String>();
+		for (Ranked ranked : rank(matches, keywords, limit, fuzzy, cancelled))
+			best.put(foods.getID(ranked.position), foods.getDescription(ranked.position));
+		return best;
+	}
+
+	/**
+	 * @param allowed catalog positions which may match, or null for every food
+	 * @return the matches which are allowed
+	 */
+	private static int[] retain(int[] matches, BitSet allowed) {
+		if (allowed == null)
+			return matches;
+
+		int[] retained = new int[matches.length];
+		int count = 0;
+		for (int match : matches) {
+			if (allowed.get(match))
+				retained[count++] = match;
+		}
+		return Arrays.copyOf(retained, count);
+	}
+
+	/**
+	 * widen the exact matches of a query with the foods matching its longer
+	 * keywords to within a few edits
+	 *
+	 * @return ascending catalog positions of the matching foods
+	 */
+	private int[] findFuzzy(List<String> keywords, int[] exact, BooleanSupplier cancelled) {
+		boolean widened = false;
+		int[][] postings = new int[keywords.size()][];
+		for (int k = 0; k < postings.length; k++) {
+			checkCancelled(cancelled);
+			String keyword = keywords.get(k);
+			postings[k] = find(keyword);
+
+			int edits = keyword.length() >= TWO_EDITS ? 2 : keyword.length() >= ONE_EDIT ? 1 : 0;
+			if (edits > 0) {
+				FDCTokenIndex.PostingUnion union = new FDCTokenIndex.PostingUnion();
+				union.add(postings[k]);
+				union.add(index.findFuzzy(keyword, edits));
+				postings[k] = union.toArray();
+				widened = true;
+			}
+		}
+		return widened ? FDCTokenIndex.intersect(postings) : exact;
+	}
+
+	/**
+	 * score every match, keeping the best in a priority queue whose head is the
+	 * worst of those kept.
+	 * <p>
+	 * how each keyword is found in a food is counted from the postings of the
+	 * terms which are the keyword or begin with it, once per query; descriptions
+	 * are not read while ranking.
+	 *
+	 * @param fuzzy true if some matches may hold a keyword only to within a few
+	 *              edits
+	 * @return the best matches, best first
+	 */
+	private Ranked[] rank(int[] matches, List<String> keywords, int limit, boolean fuzzy,
+			BooleanSupplier cancelled) {
+		String[] keys = keywords.toArray(new String[keywords.size()]);
+		int[] fdcIDs = new int[keys.length];
+		double[] idf = new double[keys.length];
+		byte[][] words = new byte[keys.length][foods.size()];
+		byte[][] prefixes = new byte[keys.length][foods.size()];
+		BitSet[] within = new BitSet[keys.length];
+		for (int k = 0; k < keys.length; k++) {
+			checkCancelled(cancelled);
+			fdcIDs[k] = parseID(keys[k]);
+			index.countTerms(keys[k], words[k], prefixes[k]);
+
+			// descriptions holding the keyword as a whole word
+			int frequency = index.getPosting(keys[k]).length;
+			idf[k] = Math.log(1 + (foods.size() - frequency + 0.5) / (frequency + 0.5));
+
+			if (fuzzy) {
+				within[k] = new BitSet(foods.size());
+				for (int position : index.find(keys[k]))
+					within[k].set(position);
+			}
+		}
+
+		int capacity = Math.max(1, Math.min(limit, matches.length));
+		PriorityQueue<Ranked> kept = new PriorityQueue<Ranked>(capacity, BEST_FIRST.reversed());
+		for (int m = 0; m < matches.length && limit > 0; m++) {
+			if (m % CANCEL_INTERVAL == 0)
+				checkCancelled(cancelled);
+
+			Ranked ranked = score(matches[m], keys, fdcIDs, idf, words, prefixes, within);
+			if (kept.size() < limit) {
+				kept.add(ranked);
+			} else if (BEST_FIRST.compare(ranked, kept.peek()) < 0) {
+				kept.poll();
+				kept.add(ranked);
+			}
+		}
+
+		Ranked[] best = new Ranked[kept.size()];
+		for (int r = best.length - 1; r >= 0; r--)
+			best[r] = kept.poll();
+		return best;
+	}
+
+	private Ranked score(int position, String[] keys, int[] fdcIDs, double[] idf, byte[][] words,
+			byte[][] prefixes, BitSet[] within) {
+		int fdcID = foods.getID(position);
+		int terms = foods.getTermCount(position);
+		double lengthNorm = 1 - B + B * terms / Math.max(1, index.getAverageTerms());
+
+		double score = 0;
+		boolean exact = true;
+		for (int k = 0; k < keys.length; k++) {
+			double frequency = words[k][position] * WORD + prefixes[k][position] * PREFIX;
+			if (fdcID == fdcIDs[k])
+				frequency += WORD;
+			else if (matchesID(fdcID, keys[k], fdcIDs[k]))
+				frequency += PREFIX;
+			if (frequency == 0) {
+				if (within[k] == null || within[k].get(position)) {
+					frequency = PARTIAL;
+				} else {
+					// matched to within a few edits
+					frequency = FUZZY;
+					exact = false;
+				}
+			}
+
+			score += idf[k] * frequency * (K1 + 1) / (frequency + K1 * lengthNorm);
+		}
+		return new Ranked(position, score, foods.getKey(position).length(), exact);
+	}
+
+	/**
+	 * narrow the matches of a previous query to those matching every keyword of
+	 * its refinement.
+	 * <p>
+	 * a food may match a longer keyword by its fdc id while its description does
+	 * not hold the shorter keyword, so the foods matched by id are checked
+	 * alongside the previous matches.
+	 *
+	 * @return ascending catalog positions of the matching foods
+	 */
+	private int[] refine(int[] previous, List<String> keywords, BooleanSupplier cancelled) {
+		String[] keys = keywords.toArray(new String[keywords.size()]);
+		int[] fdcIDs = new int[keywords.size()];
+		FDCTokenIndex.PostingUnion candidates = new FDCTokenIndex.PostingUnion();
+		candidates.add(previous);
+
+		for (int k = 0; k < keys.length; k++) {
+			fdcIDs[k] = parseID(keys[k]);
+			candidates.add(findID(keys[k], fdcIDs[k]));
+		}
+
+		int[] matches = candidates.toArray().clone();
+		int count = 0;
+		for (int m = 0; m < matches.length; m++) {
+			if (m % CANCEL_INTERVAL == 0)
+				checkCancelled(cancelled);
+			if (matches(matches[m], keys, fdcIDs))
+				matches[count++] = matches[m];
+		}
+		return Arrays.copyOf(matches, count);
+	}
+
+	private static void checkCancelled(BooleanSupplier cancelled) {
+		if (cancelled.getAsBoolean())
+			throw new CancellationException("search cancelled");
+	}
+
+	/**
+	 * @return true if the food at the given position matches every keyword, by
+	 *         description or by fdc id
+	 */
+	private boolean matches(int position, String[] keys, int[] fdcIDs) {
+		String key = foods.getKey(position);
+		int fdcID = foods.getID(position);
+		for (int k = 0; k < keys.length; k++) {
+			if (!matchesID(fdcID, keys[k], fdcIDs[k]) && !key.contains(keys[k]))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return ascending catalog positions of the foods matching one keyword: by
+	 *         description, or by fdc id when the keyword is a number
+	 */
+	private int[] find(String keyword) {
+		int[] byID = findID(keyword, parseID(keyword));
+		if (byID.length == 0)
+			return index.find(keyword);
+
+		FDCTokenIndex.PostingUnion union = new FDCTokenIndex.PostingUnion();
+		union.add(index.find(keyword));
+		union.add(byID);
+		return union.toArray();
+	}
+
+	/**
+	 * @param fdcID the keyword read as an fdc id, or -1
+	 * @return ascending catalog positions of the foods matching the keyword by
+	 *         fdc id
+	 */
+	private int[] findID(String keyword, int fdcID) {
+		if (fdcID < 0)
+			return new int[0];
+		if (keyword.length() >= ID_PREFIX)
+			return foods.indexOfPrefix(fdcID);
+
+		int position = foods.indexOf(fdcID);
+		return position < 0 ? new int[0] : new int[] { position };
+	}
+
+	/**
+	 * @param keywordID the keyword read as an fdc id, or -1
+	 * @return true if the food with the given id matches the keyword by id
+	 */
+	private static boolean matchesID(int fdcID, String keyword, int keywordID) {
+		if (keywordID < 0)
+			return false;
+		return fdcID == keywordID || (keyword.length() >= ID_PREFIX && FDCFoodCatalog.hasPrefix(fdcID, keywordID));
+	}
+
+	/**
+	 * @return the fdc id written exactly by the given keyword, or -1 if the
+	 *         keyword is not written as an fdc id
+	 */
+	private static int parseID(String keyword) {
+		if (keyword.isEmpty() || keyword.length() > 9 || (keyword.charAt(0) == '0' && keyword.length() > 1))
+			return -1;
+		for (int i = 0; i < keyword.length(); i++) {
+			if (keyword.charAt(i) < '0' || keyword.charAt(i) > '9')
+				return -1;
+		}
+		return Integer.parseInt(keyword);
 	}
 
 	private static List<String> getSearchTerms(String query) {
 		// initialise the list to return
 		List<String> queries = new ArrayList<>();
 
+		// fold the query to the form of the search keys, once
+		query = TextUtils.fold(query);
+
 		// change some punctuation to spaces
 		StringBuilder temp = new StringBuilder();
 		for (char c : query.toCharArray()) {
@@ -84,6 +470,54 @@ public class FDCSearch {
 		return queries.stream().distinct().collect(Collectors.toList());
 	}
 
+	// a matching food and its relevance
+	private static class Ranked {
+
+		private final int position;
+		private final double score;
+		private final int length;
+		private final boolean exact;
+
+		private Ranked(int position, double score, int length, boolean exact) {
+			this.position = position;
+			this.score = score;
+			this.length = length;
+			this.exact = exact;
+		}
+	}
+
+	// keywords of a query and the ascending catalog positions of its matches
+	private static class Query {
+
+		private final List<String> keywords;
+		private final int[] matches;
+
+		private Query(List<String> keywords, int[] matches) {
+			this.keywords = keywords;
+			this.matches = matches;
+		}
+
+		/**
+		 * @return true if every food matching the given keywords must match this
+		 *         query: each keyword of this query is held within one of the new
+		 *         keywords
+		 */
+		private boolean isRefinedBy(List<String> refinement) {
+			for (String keyword : keywords) {
+				boolean held = false;
+				for (String longer : refinement) {
+					if (longer.contains(keyword)) {
+						held = true;
+						break;
+					}
+				}
+				if (!held)
+					return false;
+			}
+			return true;
+		}
+	}
+
 //	passes a messy query for testing 
 	public static void main(String[] args) {
 		for (String s : getSearchTerms(", f horse, goat,, ")) {
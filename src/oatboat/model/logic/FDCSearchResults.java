@@ -0,0 +1,67 @@
+package oatboat.model.logic;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * the best matches of an {@link FDCSearch}, in order of relevance, with the
+ * number of foods which matched in total.
+ */
+public class FDCSearchResults {
+
+	private final Map<Integer, String> foods;
+	private final int total;
+	private final boolean filterIgnored;
+
+	/**
+	 * @param foods fdc ids and descriptions of the best matches, best first
+	 * @param total the number of foods which matched
+	 */
+	FDCSearchResults(Map<Integer, String> foods, int total) {
+		this(foods, total, false);
+	}
+
+	private FDCSearchResults(Map<Integer, String> foods, int total, boolean filterIgnored) {
+		this.foods = Collections.unmodifiableMap(foods);
+		this.total = total;
+		this.filterIgnored = filterIgnored;
+	}
+
+	/**
+	 * @return these results, noting that the nutrient conditions of the query
+	 *         were not applied
+	 */
+	FDCSearchResults ignoringFilter() {
+		return new FDCSearchResults(foods, total, true);
+	}
+
+	/**
+	 * @return fdc ids and descriptions of the best matches, iterated best first
+	 */
+	public Map<Integer, String> getFoods() {
+		return foods;
+	}
+
+	/**
+	 * @return the number of foods which matched, including those not held here
+	 */
+	public int getTotal() {
+		return total;
+	}
+
+	/**
+	 * @return true if more foods matched than are held here
+	 */
+	public boolean hasMore() {
+		return total > foods.size();
+	}
+
+	/**
+	 * @return true if the query held nutrient conditions which were not applied,
+	 *         as in low memory mode, so the foods matched its keywords alone
+	 */
+	public boolean isFilterIgnored() {
+		return filterIgnored;
+	}
+
+}
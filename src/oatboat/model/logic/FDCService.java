@@ -0,0 +1,192 @@
+package oatboat.model.logic;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * owns the single {@link FDCDatabase} of an application session, so that every
+ * FDC search window shares one copy of the data which is loaded at most once.
+ * <p>
+ * loading starts on the first request, on a daemon thread. a warm-up started
+ * with {@link #warmUp(boolean)} runs at the lowest thread priority, and is
+ * raised to normal priority as soon as a search window asks for the data.
+ * <p>
+ * the fdc folder, or its parent until the folder is created, is watched for
+ * changes to the CSV files. when a new release is dropped in, a replacement
+ * database is built in the background and swapped in once it is complete;
+ * until then the previous database remains in use.
+ * <p>
+ * when the data is requested in the other memory mode, the database still
+ * loading in the previous mode is cancelled, so only one load reads the files
+ * at a time.
+ */
+public class FDCService {
+
+	// seconds without further changes before changed CSV files are reloaded
+	private static final int QUIET_SECONDS = 5;
+
+	private FDCDatabase database;
+	private FDCDatabase replacement;
+	private Thread loader;
+	private Thread watcher;
+
+	/**
+	 * start loading the FDC data in the background at low priority, unless it is
+	 * already loading or loaded.
+	 *
+	 * @param lowMemory whether the data should be held in low memory mode
+	 */
+	public synchronized void warmUp(boolean lowMemory) {
+		start(lowMemory, Thread.MIN_PRIORITY);
+	}
+
+	/**
+	 * get the shared FDC data, starting to load it if necessary. the data may not
+	 * be ready yet: see {@link FDCDatabase#isReady()}.
+	 *
+	 * @param lowMemory whether the data should be held in low memory mode. if this
+	 *                  differs from the mode of the current data, the data is
+	 *                  loaded again in the requested mode
+	 * @return the FDC data
+	 */
+	public synchronized FDCDatabase getDatabase(boolean lowMemory) {
+		if (!start(lowMemory, Thread.NORM_PRIORITY) && loader.isAlive())
+			loader.setPriority(Thread.NORM_PRIORITY);
+		return database;
+	}
+
+	/**
+	 * @return true if a new loader thread was started
+	 */
+	private boolean start(boolean lowMemory, int priority) {
+		if (database != null && database.isLowMemory() == lowMemory)
+			return false;
+
+		if (database != null)
+			database.cancel();
+		if (replacement != null)
+			replacement.cancel();
+
+		database = new FDCDatabase(lowMemory);
+		loader = new Thread(database, "fdc loader");
+		loader.setDaemon(true);
+		loader.setPriority(priority);
+		loader.start();
+
+		if (watcher == null) {
+			watcher = new Thread(this::watch, "fdc watcher");
+			watcher.setDaemon(true);
+			watcher.setPriority(Thread.MIN_PRIORITY);
+			watcher.start();
+		}
+		return true;
+	}
+
+	/**
+	 * wait for changes to the CSV files in the fdc folder, and reload the database
+	 * once the files have stopped changing (a new release may take a while to copy
+	 * into place). while the folder does not exist, wait for it to be created.
+	 */
+	private void watch() {
+		File folder = FDCSnapshot.NUTRIENT_CSV.getAbsoluteFile().getParentFile();
+
+		try (WatchService service = FileSystems.getDefault().newWatchService()) {
+			while (true) {
+				boolean created = awaitFolder(service, folder);
+				WatchKey folderKey = folder.toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY);
+
+				// files may have been copied in before the folder was registered
+				if (created)
+					reloadWhenQuiet(service);
+
+				// until the folder is deleted
+				while (folderKey.isValid()) {
+					WatchKey key = service.take();
+					boolean changed = key == folderKey && isSourceChange(key);
+					key.pollEvents();
+					key.reset();
+					if (changed)
+						reloadWhenQuiet(service);
+				}
+			}
+
+		} catch (IOException | InterruptedException e) {
+			System.out.println("fdc folder is no longer watched: " + e);
+		}
+	}
+
+	/**
+	 * wait for the folder to be created in its parent, if it does not exist
+	 *
+	 * @return true if the folder did not exist
+	 */
+	private static boolean awaitFolder(WatchService service, File folder) throws IOException, InterruptedException {
+		if (folder.isDirectory())
+			return false;
+
+		WatchKey parentKey = folder.getParentFile().toPath().register(service,
+				StandardWatchEventKinds.ENTRY_CREATE);
+		while (!folder.isDirectory()) {
+			WatchKey key = service.poll(QUIET_SECONDS, TimeUnit.SECONDS);
+			if (key != null) {
+				key.pollEvents();
+				key.reset();
+			}
+		}
+		parentKey.cancel();
+		return true;
+	}
+
+	private void reloadWhenQuiet(WatchService service) throws InterruptedException {
+		WatchKey key;
+		while ((key = service.poll(QUIET_SECONDS, TimeUnit.SECONDS)) != null) {
+			key.pollEvents();
+			key.reset();
+		}
+		reload();
+	}
+
+	private static boolean isSourceChange(WatchKey key) {
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			Object context = event.context();
+			if (context instanceof Path) {
+				String name = ((Path) context).getFileName().toString();
+				if (name.equals(FDCSnapshot.FOOD_CSV.getName()) || name.equals(FDCSnapshot.NUTRIENT_CSV.getName())
+						|| name.equals(FDCSnapshot.CATEGORY_CSV.getName()))
+					changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * build a replacement for the current database on this thread, then swap it in
+	 * if it loaded successfully and the current database has not been replaced in
+	 * the meantime
+	 */
+	private void reload() {
+		FDCDatabase current, reloaded;
+		synchronized (this) {
+			current = database;
+			reloaded = replacement = new FDCDatabase(current.isLowMemory());
+		}
+
+		reloaded.run();
+
+		synchronized (this) {
+			replacement = null;
+			if (reloaded.isReady().get() && database == current)
+				database = reloaded;
+		}
+	}
+
+}
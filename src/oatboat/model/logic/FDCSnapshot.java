@@ -0,0 +1,196 @@
+package oatboat.model.logic;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+/**
+ * a binary copy of the local FDC CSV files (food.csv and food_nutrient.csv),
+ * written once after the CSVs have been parsed and memory mapped on every later
+ * load.
+ * <p>
+ * the snapshot records the size and modification time of both CSV files, and
+ * the nutrients of the {@link FDCNutrientCatalog} it was built with; it is only
+ * used while those still match, so dropping a new FDC release into the fdc
+ * folder, or keeping further nutrients, causes the snapshot to be rebuilt.
+ * <p>
+ * layout of the file, all values big-endian:
+ *
+ * <pre>
+ * int magic, int version
+ * long food.csv size, long food.csv modified, long food_nutrient.csv size, long food_nutrient.csv modified
+ * int nutrient count, int[] nutrient ids of the catalog
+ * nutrient table (see FDCNutrientTable)
+ * int food count, int[] fdc ids, int[] description offsets (count + 1), byte[] descriptions (UTF-8)
+ * facets of the foods (see FDCFacets)
+ * </pre>
+ */
+public class FDCSnapshot {
+
+	static final File FOOD_CSV = new File("fdc/food.csv");
+	static final File NUTRIENT_CSV = new File("fdc/food_nutrient.csv");
+	static final File CATEGORY_CSV = new File("fdc/food_category.csv");
+	static final File SNAPSHOT = new File("fdc/fdc.snapshot");
+
+	private static final int MAGIC = 0x4F424644; // "OBFD"
+	private static final int VERSION = 6;
+	private static final int HEADER_BYTES = 2 * Integer.BYTES + 4 * Long.BYTES;
+
+	private final ByteBuffer buffer;
+
+	private FDCSnapshot(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * @return the size and modification time of both CSV files, in the order
+	 *         stored in the snapshot header; or null if either file is missing
+	 */
+	static long[] sourceStamp() {
+		if (!FOOD_CSV.isFile() || !NUTRIENT_CSV.isFile())
+			return null;
+		return new long[] { FOOD_CSV.length(), FOOD_CSV.lastModified(), NUTRIENT_CSV.length(),
+				NUTRIENT_CSV.lastModified() };
+	}
+
+	/**
+	 * map the snapshot file, if it exists and still matches the CSV files and the
+	 * catalog.
+	 *
+	 * @param catalog the nutrients which the snapshot must hold
+	 * @return the snapshot, or null if it is missing, unreadable or out of date
+	 */
+	public static FDCSnapshot open(FDCNutrientCatalog catalog) {
+		long[] sources = sourceStamp();
+		if (sources == null || !SNAPSHOT.isFile())
+			return null;
+
+		try (FileChannel channel = FileChannel.open(SNAPSHOT.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() < HEADER_BYTES)
+				return null;
+
+			ByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+				return null;
+			for (long source : sources) {
+				if (buffer.getLong() != source)
+					return null;
+			}
+			int[] nutrientIDs = catalog.getNutrientIDs();
+			if (buffer.getInt() != nutrientIDs.length)
+				return null;
+			for (int nutrientID : nutrientIDs) {
+				if (buffer.getInt() != nutrientID)
+					return null;
+			}
+			return new FDCSnapshot(buffer.slice());
+
+		} catch (IOException | RuntimeException e) {
+			// a damaged snapshot is simply rebuilt from the CSV files
+			return null;
+		}
+	}
+
+	/**
+	 * write a new snapshot file, see
+	 * {@link FDCFiles#replace(File, FDCFiles.Content)}.
+	 *
+	 * @param sources   the stamp of the CSV files taken before they were read, see
+	 *                  {@link #sourceStamp()}
+	 * @param catalog   the nutrients held in the table
+	 * @param nutrients the parsed nutrients file
+	 * @param foods     the parsed food file
+	 * @param facets    the data types and categories of the foods
+	 */
+	static void write(long[] sources, FDCNutrientCatalog catalog, FDCNutrientTable nutrients, FDCFoodCatalog foods,
+			FDCFacets facets) throws IOException {
+		FDCFiles.replace(SNAPSHOT, out -> {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			for (long source : sources)
+				out.writeLong(source);
+			out.writeInt(catalog.size());
+			for (int nutrientID : catalog.getNutrientIDs())
+				out.writeInt(nutrientID);
+
+			nutrients.writeTo(out);
+
+			byte[][] descriptions = new byte[foods.size()][];
+
+			out.writeInt(foods.size());
+			for (int i = 0; i < foods.size(); i++) {
+				out.writeInt(foods.getID(i));
+				descriptions[i] = foods.getDescription(i).getBytes(StandardCharsets.UTF_8);
+			}
+
+			int offset = 0;
+			out.writeInt(offset);
+			for (byte[] description : descriptions) {
+				offset += description.length;
+				out.writeInt(offset);
+			}
+			for (byte[] description : descriptions)
+				out.write(description);
+
+			facets.writeTo(out);
+		});
+	}
+
+	/**
+	 * @return the nutrient table held in the snapshot
+	 */
+	public FDCNutrientTable getNutrients() {
+		return FDCNutrientTable.readFrom(buffer.duplicate());
+	}
+
+	/**
+	 * @return the fdc ids & food descriptions held in the snapshot
+	 */
+	public FDCFoodCatalog getFoods() {
+		ByteBuffer foods = buffer.duplicate();
+		FDCNutrientTable.skip(foods);
+
+		int count = foods.getInt();
+		int[] ids = new int[count];
+		int[] offsets = new int[count + 1];
+
+		foods.asIntBuffer().get(ids);
+		foods.position(foods.position() + count * Integer.BYTES);
+		foods.asIntBuffer().get(offsets);
+		foods.position(foods.position() + (count + 1) * Integer.BYTES);
+
+		byte[] descriptions = new byte[offsets[count]];
+		foods.get(descriptions);
+
+		String[] foodDescriptions = new String[count];
+		for (int i = 0; i < count; i++)
+			foodDescriptions[i] = new String(descriptions, offsets[i], offsets[i + 1] - offsets[i],
+					StandardCharsets.UTF_8);
+
+		return new FDCFoodCatalog(ids, foodDescriptions);
+	}
+
+	/**
+	 * @param categoryNames descriptions of the categories by food_category_id
+	 * @return the data types and categories of the foods held in the snapshot
+	 */
+	public FDCFacets getFacets(Map<String, String> categoryNames) {
+		ByteBuffer facets = buffer.duplicate();
+		FDCNutrientTable.skip(facets);
+
+		// skip the ids, then the offsets of the descriptions, the last of which is
+		// the length of all descriptions
+		int count = facets.getInt();
+		int offsets = facets.position() + count * Integer.BYTES;
+		int length = facets.getInt(offsets + count * Integer.BYTES);
+		facets.position(offsets + (count + 1) * Integer.BYTES + length);
+
+		return FDCFacets.readFrom(facets, count, categoryNames);
+	}
+
+}
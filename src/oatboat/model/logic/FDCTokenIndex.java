@@ -0,0 +1,660 @@
+package oatboat.model.logic;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * inverted index over the words of the food descriptions in an
+ * {@link FDCFoodCatalog}.
+ * <p>
+ * each folded description is split into terms at the same characters which
+ * separate search keywords (space, comma and full stop). the index holds a
+ * sorted dictionary of those terms and, for each term, a posting list: the
+ * ascending catalog positions of the foods whose description contains the
+ * term. as catalog positions follow fdc id order, each posting list is also in
+ * fdc id order.
+ * <p>
+ * since a keyword never contains a separator, a description contains the
+ * keyword exactly when one of its terms does; {@link #find(String)} therefore
+ * keeps the substring semantics of a plain scan.
+ * <p>
+ * to find the terms containing a keyword without checking the whole
+ * dictionary, the terms are themselves indexed by trigram (every run of three
+ * characters). the terms holding all trigrams of a keyword are the candidates,
+ * and only these are checked for the keyword.
+ * <p>
+ * misspelt keywords are matched by {@link #findFuzzy(String, int)}, which walks
+ * the sorted dictionary with the rows of a Levenshtein automaton. the rows for
+ * a prefix are shared by every term beginning with it, and a prefix which is
+ * already too distant rules out every such term at once.
+ * <p>
+ * the index is held in flat buffers, which may be written to {@link #INDEX} and
+ * memory mapped by a later session rather than built again; postings are then
+ * read from the page cache as queries need them. the file is only used while it
+ * matches the foods of the catalog, which is checked against a fingerprint of
+ * their ids and descriptions. layout of the file, all values big-endian:
+ *
+ * <pre>
+ * int magic, int version, int food count, long catalog fingerprint, double average terms
+ * int term count, int[] term starts (count + 1), char[] terms
+ * int[] posting starts (term count + 1), int[] postings
+ * int trigram count, long[] trigrams, int[] trigram starts (count + 1), int[] term numbers
+ * </pre>
+ */
+public class FDCTokenIndex {
+
+	static final File INDEX = new File("fdc/food.idx");
+
+	private static final int MAGIC = 0x4F424958; // "OBIX"
+	private static final int VERSION = 1;
+
+	private final double averageTerms;
+
+	// the characters of term t lie between termStarts[t] and termStarts[t + 1]
+	private final IntBuffer termStarts;
+	private final CharBuffer termChars;
+
+	// the posting list of term t lies between postingStarts[t] and [t + 1]
+	private final IntBuffer postingStarts;
+	private final IntBuffer postings;
+
+	// sorted trigram keys, and for each the ascending numbers of the terms holding it
+	private final LongBuffer trigrams;
+	private final IntBuffer trigramStarts;
+	private final IntBuffer trigramTerms;
+
+	private FDCTokenIndex(double averageTerms, IntBuffer termStarts, CharBuffer termChars, IntBuffer postingStarts,
+			IntBuffer postings, LongBuffer trigrams, IntBuffer trigramStarts, IntBuffer trigramTerms) {
+		this.averageTerms = averageTerms;
+		this.termStarts = termStarts;
+		this.termChars = termChars;
+		this.postingStarts = postingStarts;
+		this.postings = postings;
+		this.trigrams = trigrams;
+		this.trigramStarts = trigramStarts;
+		this.trigramTerms = trigramTerms;
+	}
+
+	/**
+	 * build the index in memory over every description of the catalog
+	 */
+	public static FDCTokenIndex build(FDCFoodCatalog foods) {
+		Map<String, PostingBuilder> index = new HashMap<String, PostingBuilder>();
+		long termCount = 0;
+
+		for (int i = 0; i < foods.size(); i++) {
+			String key = foods.getKey(i);
+			int start = 0;
+			for (int end = 0; end <= key.length(); end++) {
+				if (end == key.length() || isSeparator(key.charAt(end))) {
+					if (end > start) {
+						index.computeIfAbsent(key.substring(start, end), term -> new PostingBuilder()).add(i);
+						termCount++;
+					}
+					start = end + 1;
+				}
+			}
+		}
+		double averageTerms = foods.size() == 0 ? 0 : (double) termCount / foods.size();
+
+		String[] terms = index.keySet().toArray(new String[index.size()]);
+		Arrays.sort(terms);
+		int[] termStarts = new int[terms.length + 1];
+		int[] postingStarts = new int[terms.length + 1];
+		PostingBuilder postings = new PostingBuilder();
+		for (int t = 0; t < terms.length; t++) {
+			termStarts[t + 1] = termStarts[t] + terms[t].length();
+			postings.addAll(index.get(terms[t]));
+			postingStarts[t + 1] = postings.size;
+		}
+		char[] termChars = new char[termStarts[terms.length]];
+		for (int t = 0; t < terms.length; t++)
+			terms[t].getChars(0, terms[t].length(), termChars, termStarts[t]);
+
+		Map<Long, PostingBuilder> trigramIndex = new HashMap<Long, PostingBuilder>();
+		for (int t = 0; t < terms.length; t++) {
+			String term = terms[t];
+			for (int c = 0; c + 3 <= term.length(); c++)
+				trigramIndex.computeIfAbsent(trigram(term, c), key -> new PostingBuilder()).add(t);
+		}
+
+		long[] trigrams = new long[trigramIndex.size()];
+		int g = 0;
+		for (long key : trigramIndex.keySet())
+			trigrams[g++] = key;
+		Arrays.sort(trigrams);
+		int[] trigramStarts = new int[trigrams.length + 1];
+		PostingBuilder trigramTerms = new PostingBuilder();
+		for (g = 0; g < trigrams.length; g++) {
+			trigramTerms.addAll(trigramIndex.get(trigrams[g]));
+			trigramStarts[g + 1] = trigramTerms.size;
+		}
+
+		return new FDCTokenIndex(averageTerms, IntBuffer.wrap(termStarts), CharBuffer.wrap(termChars),
+				IntBuffer.wrap(postingStarts), IntBuffer.wrap(postings.toArray()), LongBuffer.wrap(trigrams),
+				IntBuffer.wrap(trigramStarts), IntBuffer.wrap(trigramTerms.toArray()));
+	}
+
+	/**
+	 * map the index file, if it exists and was built from the given foods.
+	 *
+	 * @return the index, or null if the file is missing, unreadable or out of date
+	 */
+	public static FDCTokenIndex open(FDCFoodCatalog foods) {
+		if (!INDEX.isFile())
+			return null;
+
+		try (FileChannel channel = FileChannel.open(INDEX.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getInt() != foods.size()
+					|| buffer.getLong() != fingerprint(foods))
+				return null;
+			double averageTerms = buffer.getDouble();
+
+			int terms = buffer.getInt();
+			IntBuffer termStarts = take(buffer, (terms + 1) * Integer.BYTES).asIntBuffer();
+			CharBuffer termChars = take(buffer, termStarts.get(terms) * Character.BYTES).asCharBuffer();
+			IntBuffer postingStarts = take(buffer, (terms + 1) * Integer.BYTES).asIntBuffer();
+			IntBuffer postings = take(buffer, postingStarts.get(terms) * Integer.BYTES).asIntBuffer();
+
+			int trigramCount = buffer.getInt();
+			LongBuffer trigrams = take(buffer, trigramCount * Long.BYTES).asLongBuffer();
+			IntBuffer trigramStarts = take(buffer, (trigramCount + 1) * Integer.BYTES).asIntBuffer();
+			IntBuffer trigramTerms = take(buffer, trigramStarts.get(trigramCount) * Integer.BYTES).asIntBuffer();
+
+			return new FDCTokenIndex(averageTerms, termStarts, termChars, postingStarts, postings, trigrams,
+					trigramStarts, trigramTerms);
+
+		} catch (IOException | RuntimeException e) {
+			// a damaged index is simply built again
+			return null;
+		}
+	}
+
+	/**
+	 * @return the next given number of bytes of the buffer, as a buffer of their
+	 *         own
+	 */
+	private static ByteBuffer take(ByteBuffer buffer, int bytes) {
+		ByteBuffer part = buffer.slice();
+		part.limit(bytes);
+		buffer.position(buffer.position() + bytes);
+		return part;
+	}
+
+	/**
+	 * @return a value which changes with any change to the ids or folded
+	 *         descriptions of the catalog
+	 */
+	private static long fingerprint(FDCFoodCatalog foods) {
+		long fingerprint = foods.size();
+		for (int i = 0; i < foods.size(); i++)
+			fingerprint = (fingerprint * 31 + foods.getID(i)) * 1000003 + foods.getKey(i).hashCode();
+		return fingerprint;
+	}
+
+	/**
+	 * write this index to {@link #INDEX}, see
+	 * {@link FDCFiles#replace(File, FDCFiles.Content)}.
+	 *
+	 * @param foods the catalog the index was built from
+	 */
+	public void write(FDCFoodCatalog foods) throws IOException {
+		FDCFiles.replace(INDEX, out -> {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(foods.size());
+			out.writeLong(fingerprint(foods));
+			out.writeDouble(averageTerms);
+
+			out.writeInt(size());
+			for (int i = 0; i < termStarts.limit(); i++)
+				out.writeInt(termStarts.get(i));
+			for (int i = 0; i < termChars.limit(); i++)
+				out.writeChar(termChars.get(i));
+			for (int i = 0; i < postingStarts.limit(); i++)
+				out.writeInt(postingStarts.get(i));
+			for (int i = 0; i < postings.limit(); i++)
+				out.writeInt(postings.get(i));
+
+			out.writeInt(trigrams.limit());
+			for (int i = 0; i < trigrams.limit(); i++)
+				out.writeLong(trigrams.get(i));
+			for (int i = 0; i < trigramStarts.limit(); i++)
+				out.writeInt(trigramStarts.get(i));
+			for (int i = 0; i < trigramTerms.limit(); i++)
+				out.writeInt(trigramTerms.get(i));
+		});
+	}
+
+	/**
+	 * @return the three characters of the text from the given position, packed
+	 *         into one key
+	 */
+	private static long trigram(String text, int position) {
+		return ((long) text.charAt(position) << 32) | ((long) text.charAt(position + 1) << 16)
+				| text.charAt(position + 2);
+	}
+
+	/**
+	 * @return true for the characters at which descriptions and queries are split
+	 *         into words
+	 */
+	static boolean isSeparator(char c) {
+		return c == ' ' || c == ',' || c == '.';
+	}
+
+	/**
+	 * @return the number of distinct terms
+	 */
+	public int size() {
+		return termStarts.limit() - 1;
+	}
+
+	/**
+	 * @return the average number of terms in a description
+	 */
+	public double getAverageTerms() {
+		return averageTerms;
+	}
+
+	/**
+	 * @return the number of terms in the given folded text
+	 */
+	static int countTerms(String text) {
+		int count = 0;
+		for (int c = 0; c < text.length(); c++) {
+			if (!isSeparator(text.charAt(c)) && (c == 0 || isSeparator(text.charAt(c - 1))))
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return the posting list of a term which appears exactly as given, or an
+	 *         empty list
+	 */
+	public int[] getPosting(String term) {
+		int t = lowerBound(term);
+		return t < size() && compareTerm(t, term) == 0 ? posting(t) : new int[0];
+	}
+
+	/**
+	 * count, for each food, whether it has a term which is the given folded
+	 * keyword, and how many longer terms beginning with it. the terms which begin
+	 * with the keyword lie together in the sorted dictionary, so only their
+	 * postings are read.
+	 *
+	 * @param words    by catalog position, set to 1 for foods holding the keyword
+	 *                 as a whole term
+	 * @param prefixes by catalog position, increased for each longer term
+	 *                 beginning with the keyword which a food holds
+	 */
+	public void countTerms(String keyword, byte[] words, byte[] prefixes) {
+		int from = lowerBound(keyword);
+		if (from < size() && compareTerm(from, keyword) == 0) {
+			for (int p = postingStarts.get(from); p < postingStarts.get(from + 1); p++)
+				words[postings.get(p)] = 1;
+			from++;
+		}
+
+		int to = keyword.isEmpty() ? size() : prefixEnd(keyword);
+		for (int t = from; t < to; t++) {
+			for (int p = postingStarts.get(t); p < postingStarts.get(t + 1); p++) {
+				int position = postings.get(p);
+				if (prefixes[position] < Byte.MAX_VALUE)
+					prefixes[position]++;
+			}
+		}
+	}
+
+	/**
+	 * find every food with a term which contains the given folded keyword.
+	 * <p>
+	 * for keywords of three or more characters the candidate terms are those
+	 * holding every trigram of the keyword. shorter keywords are matched by binary
+	 * search for the terms which begin with the keyword, and a check of the
+	 * remaining terms one by one.
+	 *
+	 * @return ascending catalog positions of the matching foods
+	 */
+	public int[] find(String keyword) {
+		PostingUnion union = new PostingUnion();
+
+		if (keyword.length() >= 3) {
+			int[][] candidates = new int[keyword.length() - 2][];
+			for (int c = 0; c < candidates.length; c++) {
+				int g = findTrigram(trigram(keyword, c));
+				if (g < 0)
+					return new int[0];
+				candidates[c] = slice(trigramTerms, trigramStarts, g);
+			}
+
+			for (int t : intersect(candidates)) {
+				if (termContains(t, keyword))
+					union.add(posting(t));
+			}
+			return union.toArray();
+		}
+
+		// terms which begin with the keyword lie together in the sorted dictionary
+		int from = lowerBound(keyword);
+		int to = from;
+		while (to < size() && termStartsWith(to, keyword))
+			to++;
+
+		for (int t = from; t < to; t++)
+			union.add(posting(t));
+
+		for (int t = 0; t < size(); t++) {
+			if ((t < from || t >= to) && termLength(t) > keyword.length() && termContains(t, keyword))
+				union.add(posting(t));
+		}
+		return union.toArray();
+	}
+
+	/**
+	 * find every food with a term which begins with the given folded keyword, to
+	 * within the given number of edits (characters inserted, removed or changed).
+	 *
+	 * @return ascending catalog positions of the matching foods
+	 */
+	public int[] findFuzzy(String keyword, int maxEdits) {
+		PostingUnion union = new PostingUnion();
+		int width = keyword.length() + 1;
+
+		// rows[d] holds the edit distances between each prefix of the keyword and
+		// the first d characters of the current term
+		int[][] rows = new int[1][width];
+		for (int j = 0; j < width; j++)
+			rows[0][j] = j;
+		int current = -1;
+		int depth = 0;
+
+		int t = 0;
+		while (t < size()) {
+			int length = termLength(t);
+
+			// rows are kept for the prefix shared with the previous term
+			int shared = 0;
+			if (current >= 0) {
+				int most = Math.min(depth, Math.min(termLength(current), length));
+				while (shared < most && termChar(current, shared) == termChar(t, shared))
+					shared++;
+			}
+			current = t;
+			depth = shared;
+
+			int next = t + 1;
+			while (depth < length) {
+				if (rows.length <= depth + 1)
+					rows = Arrays.copyOf(rows, Math.max(rows.length * 2, depth + 2));
+				if (rows[depth + 1] == null)
+					rows[depth + 1] = new int[width];
+				int[] above = rows[depth];
+				int[] row = rows[depth + 1];
+				char c = termChar(t, depth);
+
+				row[0] = above[0] + 1;
+				int least = row[0];
+				for (int j = 1; j < width; j++) {
+					int change = above[j - 1] + (keyword.charAt(j - 1) == c ? 0 : 1);
+					row[j] = Math.min(change, Math.min(above[j] + 1, row[j - 1] + 1));
+					least = Math.min(least, row[j]);
+				}
+				depth++;
+
+				if (row[width - 1] <= maxEdits) {
+					// every term with this prefix matches
+					next = prefixEnd(termPrefix(t, depth));
+					for (int match = t; match < next; match++)
+						union.add(posting(match));
+					break;
+				}
+				if (least > maxEdits) {
+					// no term with this prefix can match
+					next = prefixEnd(termPrefix(t, depth));
+					break;
+				}
+			}
+			t = next;
+		}
+		return union.toArray();
+	}
+
+	/**
+	 * @return the position of the first term which does not begin with the given
+	 *         prefix, following those which do
+	 */
+	private int prefixEnd(String prefix) {
+		char last = prefix.charAt(prefix.length() - 1);
+		if (last == Character.MAX_VALUE)
+			return size();
+		return lowerBound(prefix.substring(0, prefix.length() - 1) + (char) (last + 1));
+	}
+
+	/**
+	 * @return the position of the first term not less than the given text
+	 */
+	private int lowerBound(String text) {
+		int low = 0;
+		int high = size();
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (compareTerm(middle, text) < 0)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * @return the position of the given trigram, or -1 if no term holds it
+	 */
+	private int findTrigram(long trigram) {
+		int low = 0;
+		int high = trigrams.limit() - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			long key = trigrams.get(middle);
+			if (key < trigram)
+				low = middle + 1;
+			else if (key > trigram)
+				high = middle - 1;
+			else
+				return middle;
+		}
+		return -1;
+	}
+
+	private int[] posting(int t) {
+		return slice(postings, postingStarts, t);
+	}
+
+	/**
+	 * @return a copy of list i of lists stored one after another
+	 */
+	private static int[] slice(IntBuffer values, IntBuffer starts, int i) {
+		int start = starts.get(i);
+		int[] slice = new int[starts.get(i + 1) - start];
+		IntBuffer source = values.duplicate();
+		source.position(start);
+		source.get(slice);
+		return slice;
+	}
+
+	private int termLength(int t) {
+		return termStarts.get(t + 1) - termStarts.get(t);
+	}
+
+	private char termChar(int t, int c) {
+		return termChars.get(termStarts.get(t) + c);
+	}
+
+	private String termPrefix(int t, int length) {
+		char[] prefix = new char[length];
+		for (int c = 0; c < length; c++)
+			prefix[c] = termChar(t, c);
+		return new String(prefix);
+	}
+
+	/**
+	 * @return the order of a term relative to the given text, as
+	 *         {@link String#compareTo(String)}
+	 */
+	private int compareTerm(int t, String text) {
+		int start = termStarts.get(t);
+		int length = termStarts.get(t + 1) - start;
+		int common = Math.min(length, text.length());
+		for (int c = 0; c < common; c++) {
+			char a = termChars.get(start + c);
+			char b = text.charAt(c);
+			if (a != b)
+				return a - b;
+		}
+		return length - text.length();
+	}
+
+	private boolean termStartsWith(int t, String prefix) {
+		if (termLength(t) < prefix.length())
+			return false;
+		int start = termStarts.get(t);
+		for (int c = 0; c < prefix.length(); c++) {
+			if (termChars.get(start + c) != prefix.charAt(c))
+				return false;
+		}
+		return true;
+	}
+
+	private boolean termContains(int t, String keyword) {
+		int start = termStarts.get(t);
+		int last = termStarts.get(t + 1) - keyword.length();
+		for (int from = start; from <= last; from++) {
+			int c = 0;
+			while (c < keyword.length() && termChars.get(from + c) == keyword.charAt(c))
+				c++;
+			if (c == keyword.length())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * intersect any number of ascending posting lists, beginning with the
+	 * shortest so that the working result is as small as possible from the start
+	 *
+	 * @return ascending positions present in every list
+	 */
+	public static int[] intersect(int[]... lists) {
+		if (lists.length == 0)
+			return new int[0];
+
+		int[][] ordered = lists.clone();
+		Arrays.sort(ordered, (a, b) -> Integer.compare(a.length, b.length));
+
+		int[] result = ordered[0];
+		for (int l = 1; l < ordered.length && result.length > 0; l++)
+			result = intersect(result, ordered[l]);
+		return result;
+	}
+
+	/**
+	 * intersect a short list with a longer one, by binary search of the longer
+	 * list from the position of the previous match
+	 */
+	private static int[] intersect(int[] shorter, int[] longer) {
+		int[] result = new int[shorter.length];
+		int count = 0;
+		int from = 0;
+
+		for (int value : shorter) {
+			int found = Arrays.binarySearch(longer, from, longer.length, value);
+			if (found >= 0) {
+				result[count++] = value;
+				from = found + 1;
+			} else {
+				from = -(found + 1);
+			}
+			if (from >= longer.length)
+				break;
+		}
+		return Arrays.copyOf(result, count);
+	}
+
+	// growable posting list, built in ascending order
+	private static class PostingBuilder {
+
+		private int[] values = new int[4];
+		private int size = 0;
+
+		private void add(int position) {
+			// a term may appear twice in one description
+			if (size > 0 && values[size - 1] == position)
+				return;
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = position;
+		}
+
+		// append another list whole, as one of several stored one after another
+		private void addAll(PostingBuilder other) {
+			if (size + other.size > values.length)
+				values = Arrays.copyOf(values, Math.max(values.length * 2, size + other.size));
+			System.arraycopy(other.values, 0, values, size, other.size);
+			size += other.size;
+		}
+
+		private int[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+
+	// union of posting lists; a single list is returned as it is
+	static class PostingUnion {
+
+		private int[] single;
+		private int[] merged;
+		private int size = 0;
+
+		void add(int[] posting) {
+			if (single == null && merged == null) {
+				single = posting;
+				return;
+			}
+			if (merged == null) {
+				merged = Arrays.copyOf(single, single.length + posting.length);
+				size = single.length;
+				single = null;
+			}
+			if (size + posting.length > merged.length)
+				merged = Arrays.copyOf(merged, Math.max(merged.length * 2, size + posting.length));
+			System.arraycopy(posting, 0, merged, size, posting.length);
+			size += posting.length;
+		}
+
+		int[] toArray() {
+			if (merged == null)
+				return single == null ? new int[0] : single;
+
+			Arrays.sort(merged, 0, size);
+			int count = 0;
+			for (int i = 0; i < size; i++) {
+				if (count == 0 || merged[count - 1] != merged[i])
+					merged[count++] = merged[i];
+			}
+			return Arrays.copyOf(merged, count);
+		}
+	}
+
+}
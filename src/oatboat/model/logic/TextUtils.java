@@ -0,0 +1,62 @@
+package oatboat.model.logic;
+
+import java.text.Normalizer;
+import java.util.Locale;
+
+/**
+ * static method library for comparing texts typed by the user with stored
+ * texts, shared by the FDC search and the quick-find of the local database.
+ */
+public class TextUtils {
+
+	/**
+	 * fold a text to its search key: lower case, with diacritics removed, so that
+	 * "susene" matches "su&scaron;en&eacute;". texts and keywords are both folded
+	 * before they are compared.
+	 */
+	public static String fold(String text) {
+		boolean plain = true;
+		for (int c = 0; c < text.length() && plain; c++)
+			plain = text.charAt(c) < 0x80;
+		if (plain)
+			return text.toLowerCase(Locale.ROOT);
+
+		String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+		StringBuilder folded = new StringBuilder(decomposed.length());
+		for (int c = 0; c < decomposed.length(); c++) {
+			char ch = decomposed.charAt(c);
+			if (Character.getType(ch) == Character.NON_SPACING_MARK)
+				continue;
+			switch (ch) {
+			// letters with no decomposition
+			case '\u0142':
+			case '\u0141':
+				folded.append('l');
+				break;
+			case '\u00f8':
+			case '\u00d8':
+				folded.append('o');
+				break;
+			case '\u0111':
+			case '\u0110':
+				folded.append('d');
+				break;
+			case '\u00df':
+				folded.append("ss");
+				break;
+			case '\u00e6':
+			case '\u00c6':
+				folded.append("ae");
+				break;
+			case '\u0153':
+			case '\u0152':
+				folded.append("oe");
+				break;
+			default:
+				folded.append(Character.toLowerCase(ch));
+			}
+		}
+		return folded.toString();
+	}
+
+}
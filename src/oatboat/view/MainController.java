@@ -18,6 +18,7 @@ import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.geometry.Pos;
+import javafx.geometry.Side;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonBar.ButtonData;
@@ -25,7 +26,9 @@ import javafx.scene.control.ButtonType;
 import javafx.scene.control.CheckBox;
 import javafx.scene.control.ChoiceDialog;
 import javafx.scene.control.ComboBox;
+import javafx.scene.control.ContextMenu;
 import javafx.scene.control.Label;
+import javafx.scene.control.MenuItem;
 import javafx.scene.control.Spinner;
 import javafx.scene.control.SpinnerValueFactory;
 import javafx.scene.control.Tab;
@@ -96,6 +99,8 @@ public class MainController {
 	private Tab tabCost;
 	@FXML
 	private Tab tabSettings;
+	@FXML
+	private TextField quickFind;
 
 	// fxml elements for nutritional info tab
 
@@ -322,6 +327,9 @@ public class MainController {
 	@FXML
 	private ComboBox<String> settingDecimalFormatComboBox;
 
+	@FXML
+	private CheckBox settingFDCLowMemory;
+
 	@FXML
 	private Button settingTesting;
 
@@ -335,6 +343,10 @@ public class MainController {
 	private Ingredient selectedNutrIngredient;
 	private Selection selectedNutrSelection, selectedRcpSelection;
 	private StringConverter<Number> doubleConv, integerConv;
+	private ContextMenu quickFindResults = new ContextMenu();
+
+	// most records offered by the quick-find field at once
+	private static final int QUICK_FIND_LIMIT = 15;
 
 	/**
 	 * methods intended to be called from Main.class to set self references for
@@ -374,6 +386,7 @@ public class MainController {
 		prepareRecipeTabItems();
 		prepareConsumablesTabItems();
 		prepareSettingsTabItems();
+		prepareQuickFind();
 
 		setAllDatabaseItems();
 	}
@@ -496,6 +509,10 @@ public class MainController {
 		
 		dbIngredientsTable.getSelectionModel().selectedItemProperty().addListener((obs, previous, current) -> dbBindIngredientTextFields(current, previous));
 		dbIngredientsTable.getSelectionModel().selectedIndexProperty().addListener((obs, previous, current) -> dbButtonDelete.setDisable(current.intValue() == -1));
+
+		MenuItem findSimilar = new MenuItem("find similar FDC foods...");
+		findSimilar.setOnAction(event -> dbLaunchSimilarWindow());
+		dbIngredientsTable.setContextMenu(new ContextMenu(findSimilar));
 		
 		dbLabelTextText.textProperty().addListener((obs, previous, current) -> dbLabelTextTooltip.setText(current));
 		
@@ -604,6 +621,10 @@ public class MainController {
 		settingDecimalFormatComboBox.getSelectionModel().selectedIndexProperty().addListener((obs, previous, current) -> settingChangeDecimalSeparator(current.intValue(), previous.intValue()));
 		settingDecimalFormatComboBox.getSelectionModel().select(main.getUserPrefs().getDecimalFormat());
 		
+		settingFDCLowMemory.setSelected(main.getUserPrefs().getFDCLowMemory());
+		settingFDCLowMemory.selectedProperty()
+				.addListener((obs, previous, state) -> main.getUserPrefs().setFDCLowMemory(state));
+
 		settingFilename.textFormatterProperty().set(TextFieldUtils.filenameFormatter());
 		settingFilename.setText(main.getUserPrefs().getDatabaseFilename());
 		
@@ -619,6 +640,14 @@ public class MainController {
 			else settingFilenameTextLock.setText("lock");
 		});	
 	}
+
+	private void prepareQuickFind() {
+		quickFind.textProperty().addListener((obs, previous, text) -> showQuickFindResults(text));
+		quickFind.setOnAction(event -> {
+			if (!quickFindResults.getItems().isEmpty())
+				quickFindResults.getItems().get(0).fire();
+		});
+	}
 	
 	//	@formatter:on
 
@@ -731,6 +760,54 @@ public class MainController {
 		rcpSelectionsTable.getItems().setAll(selectedRecipe.getSelections());
 	}
 
+	/**
+	 * list the records whose names begin with the words typed in the quick-find
+	 * field, beneath it. choosing one shows it in its own tab
+	 */
+	private void showQuickFindResults(String text) {
+		List<MenuItem> items = new ArrayList<MenuItem>();
+		for (Object record : db.getIndex().find(text, QUICK_FIND_LIMIT)) {
+			MenuItem item = new MenuItem(describeQuickFindRecord(record));
+			item.setOnAction(event -> showQuickFindRecord(record));
+			items.add(item);
+		}
+
+		quickFindResults.getItems().setAll(items);
+		if (items.isEmpty())
+			quickFindResults.hide();
+		else if (!quickFindResults.isShowing())
+			quickFindResults.show(quickFind, Side.BOTTOM, 0, 0);
+	}
+
+	private String describeQuickFindRecord(Object record) {
+		if (record instanceof Ingredient)
+			return "ingredient: " + ((Ingredient) record).getName();
+		if (record instanceof Recipe)
+			return "recipe: " + ((Recipe) record).getTitle();
+		if (record instanceof LabelSet)
+			return "label set: " + ((LabelSet) record).setName;
+		return "consumable: " + ((Consumable) record).getItemName();
+	}
+
+	private void showQuickFindRecord(Object record) {
+		if (record instanceof Ingredient) {
+			tabPane.getSelectionModel().select(tabDB);
+			dbIngredientsTable.getSelectionModel().select((Ingredient) record);
+			dbIngredientsTable.scrollTo((Ingredient) record);
+		} else if (record instanceof Recipe) {
+			tabPane.getSelectionModel().select(tabRcp);
+			rcpSelectionCombo.getSelectionModel().select((Recipe) record);
+		} else if (record instanceof LabelSet) {
+			tabPane.getSelectionModel().select(tabRcp);
+			rcpLabelSetComboBox.getSelectionModel().select((LabelSet) record);
+		} else if (record instanceof Consumable) {
+			tabPane.getSelectionModel().select(tabCost);
+			costConsumableTableView.getSelectionModel().select((Consumable) record);
+			costConsumableTableView.scrollTo((Consumable) record);
+		}
+		quickFindResults.hide();
+	}
+
 	private void updateRecipesComboBox() {
 		rcpSelectionCombo.getItems().setAll(db.getRecipes());
 	}
@@ -1019,6 +1096,25 @@ public class MainController {
 	 */
 	@FXML
 	private void dbLaunchSearchWindow() throws Exception {
+		launchSearchWindow(null);
+	}
+
+	/**
+	 * launch the results search listing the FDC foods closest in nutrients to an
+	 * ingredient, e.g. to find a substitute for it
+	 */
+	private void dbLaunchSimilarWindow() {
+		Ingredient selected = dbIngredientsTable.getSelectionModel().getSelectedItem();
+		if (selected == null)
+			return;
+		try {
+			launchSearchWindow(selected);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void launchSearchWindow(Ingredient similarTo) throws Exception {
 
 		results = new Stage();
 		results.initModality(Modality.APPLICATION_MODAL);
@@ -1029,10 +1125,12 @@ public class MainController {
 		ResultsController controller = loader.getController();
 		controller.setParentController(this);
 		controller.setSelfReference(results);
+		controller.setFDCDatabase(main.getFDCService().getDatabase(main.getUserPrefs().getFDCLowMemory()));
+		controller.setSimilarTo(similarTo);
 
 		Scene scene = new Scene(searchPane);
 
-		results.setTitle("FDC Database Search");
+		results.setTitle(similarTo == null ? "FDC Database Search" : "FDC foods similar to " + similarTo.getName());
 		results.setScene(scene);
 		results.setResizable(false);
 		results.setX(parentStage.getX() + 100);
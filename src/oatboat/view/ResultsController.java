@@ -1,27 +1,59 @@
 package oatboat.view;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
 import javafx.beans.property.ReadOnlyStringWrapper;
 import javafx.beans.value.ChangeListener;
-import javafx.beans.value.ObservableValue;
+import javafx.beans.value.WeakChangeListener;
+import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
+import javafx.geometry.Orientation;
+import javafx.scene.Node;
 import javafx.scene.control.Button;
+import javafx.scene.control.ComboBox;
+import javafx.scene.control.Label;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.control.ScrollBar;
 import javafx.scene.control.TableColumn;
 import javafx.scene.control.TableView;
 import javafx.scene.control.TextField;
 import javafx.scene.control.cell.TextFieldTableCell;
+import javafx.scene.layout.HBox;
 import javafx.stage.Stage;
+import javafx.util.Duration;
+import javafx.util.StringConverter;
+import oatboat.model.food.Ingredient;
 import oatboat.model.logic.FDCDatabase;
-import oatboat.model.logic.FDCSearch;
+import oatboat.model.logic.FDCFacets;
+import oatboat.model.logic.FDCSearchResults;
 
 public class ResultsController {
 
+	// number of results shown at first (a little over a screenful), and added
+	// each time the list is scrolled to its end or 'more' is pressed
+	private static final int PAGE_SIZE = 50;
+
+	// pause in typing before a search begins
+	private static final Duration SEARCH_DELAY = Duration.millis(150);
+
+	// searches run off the JavaFX thread, on virtual threads where the JVM has them
+	private static final ExecutorService searcher = newSearchExecutor();
+
 	@FXML
-	private TableView<String> resultsTable;
+	private TableView<Integer> resultsTable;
 
 	@FXML
-	private TableColumn<String, String> resultsColumn;
+	private TableColumn<Integer, String> resultsColumn;
 
 	@FXML
 	private TextField keyword;
@@ -35,11 +67,48 @@ public class ResultsController {
 	@FXML
 	private Button search;
 
+	@FXML
+	private Button more;
+
+	@FXML
+	private HBox facets;
+
+	@FXML
+	private ComboBox<String> dataTypeChoice;
+
+	@FXML
+	private ComboBox<String> categoryChoice;
+
+	@FXML
+	private ProgressBar loadProgress;
+
+	@FXML
+	private Label loadStatus;
+
 	private MainController mainApp;
-	private Map<String, Integer> results;
-	private String selection = null;
+	private Map<Integer, String> results;
+	private Integer selection = null;
 	private Stage self;
 	private FDCDatabase fdcDB;
+	private Ingredient similarTo;
+
+	// number of the latest query; any search for an earlier number is abandoned
+	private final AtomicLong latestQuery = new AtomicLong();
+	private final PauseTransition searchDelay = new PauseTransition(SEARCH_DELAY);
+
+	// the text of the last search started, the number of results asked for, and
+	// whether a further page is being fetched
+	private String searchText = "";
+	private int limit = PAGE_SIZE;
+	private boolean loadingPage = false;
+
+	// whether the data has been seen to be ready
+	private boolean ready = false;
+
+	// held here and attached weakly, as the shared database outlives this window.
+	// the database is loaded, and reports its progress, on other threads
+	private ChangeListener<Object> dbLoadListener = (observable, oldValue, newValue) -> Platform
+			.runLater(this::showLoadStatus);
 
 	public void setParentController(MainController maincontrol) {
 		this.mainApp = maincontrol;
@@ -49,53 +118,260 @@ public class ResultsController {
 		this.self = stage;
 	}
 
+	/**
+	 * @param database the FDC data shared by all search windows, which may still be
+	 *                 loading
+	 */
+	public void setFDCDatabase(FDCDatabase database) {
+		this.fdcDB = database;
+	}
+
+	/**
+	 * @param ingredient an ingredient whose closest FDC foods by nutrients are
+	 *                   listed once the data is ready, in place of search results;
+	 *                   or null to begin with an empty search
+	 */
+	public void setSimilarTo(Ingredient ingredient) {
+		this.similarTo = ingredient;
+	}
+
 	public void preDisplayTasks() {
 		resultsColumn.setCellFactory(TextFieldTableCell.forTableColumn());
-		resultsColumn.setCellValueFactory(data -> new ReadOnlyStringWrapper(data.getValue()));
+		resultsColumn.setCellValueFactory(data -> new ReadOnlyStringWrapper(results.get(data.getValue())));
 
-		resultsTable.getSelectionModel().selectedItemProperty()
-				.addListener((observable, oldValue, newValue) -> selection = newValue);
+		resultsTable.getSelectionModel().selectedItemProperty().addListener((observable, oldValue, newValue) -> {
+			selection = newValue;
+			if (newValue != null && fdcDB != null)
+				fdcDB.prefetch(newValue);
+		});
 		
+		searchDelay.setOnFinished((event) -> getAndDisplayResults());
 		keyword.setOnKeyTyped((event) -> {
-			getAndDisplayResults();
+			latestQuery.incrementAndGet();
+			searchDelay.playFromStart();
 		});
 	}
 
 	public void postDisplayTasks() {
 		keyword.requestFocus();
 		initDB();
+		initPaging();
+	}
+
+	/**
+	 * fetch the next page of results when the table is scrolled to its end. the
+	 * scroll bar is part of the table's skin, so exists once the window is shown
+	 */
+	private void initPaging() {
+		for (Node node : resultsTable.lookupAll(".scroll-bar")) {
+			if (node instanceof ScrollBar && ((ScrollBar) node).getOrientation() == Orientation.VERTICAL) {
+				ScrollBar bar = (ScrollBar) node;
+				bar.valueProperty().addListener((observable, oldValue, newValue) -> {
+					if (newValue.doubleValue() >= bar.getMax() && more.isVisible() && !loadingPage)
+						loadMore();
+				});
+			}
+		}
 	}
 
 	private void initDB() {
-		fdcDB = new FDCDatabase();
-		fdcDB.isReady().addListener(new ChangeListener<Boolean>() {
-			@Override
-			public void changed(ObservableValue<? extends Boolean> observable, Boolean oldValue, Boolean newValue) {
-				confirm.setDisable(!newValue);
+		WeakChangeListener<Object> listener = new WeakChangeListener<Object>(dbLoadListener);
+		fdcDB.isReady().addListener(listener);
+		fdcDB.getBytesProcessedProperty().addListener(listener);
+		fdcDB.getFailureReasonProperty().addListener(listener);
+		showLoadStatus();
+	}
+
+	/**
+	 * update the OK button and the progress bar to reflect the loading state of
+	 * the FDC data
+	 */
+	private void showLoadStatus() {
+		boolean ready = fdcDB.isReady().get();
+		String failure = fdcDB.getFailureReasonProperty().get();
+		long total = fdcDB.getBytesTotalProperty().get();
+
+		confirm.setDisable(!ready);
+		loadProgress.setVisible(!ready);
+		loadStatus.setVisible(!ready);
+		if (ready) {
+			if (!this.ready) {
+				this.ready = true;
+				showFirstResults();
 			}
+			return;
+		}
+
+		if (failure != null) {
+			loadProgress.setProgress(0);
+			loadStatus.setText("FDC data unavailable: " + failure);
+		} else if (total > 0) {
+			double remaining = fdcDB.getSecondsRemainingProperty().get();
+			loadProgress.setProgress((double) fdcDB.getBytesProcessedProperty().get() / total);
+			loadStatus.setText(String.format("loading FDC data: %,.0f rows/s%s", fdcDB.getRowsPerSecondProperty().get(),
+					remaining >= 0 ? String.format(", %.0f s left", remaining) : ""));
+		} else {
+			loadProgress.setProgress(ProgressBar.INDETERMINATE_PROGRESS);
+		}
+	}
+
+	/**
+	 * once the data is ready, list the FDC foods closest in nutrients to the
+	 * ingredient given by {@link #setSimilarTo(Ingredient)}, which typing a search
+	 * replaces; or repeat any search typed while the data was loading, as nothing
+	 * can be found until it is ready
+	 */
+	private void showFirstResults() {
+		prepareFacets();
+		if (similarTo == null) {
+			if (!keyword.getText().trim().isEmpty())
+				getAndDisplayResults();
+			return;
+		}
+		long query = latestQuery.incrementAndGet();
+		searcher.execute(() -> {
+			Map<Integer, String> similar = fdcDB.getSimilarFoods(similarTo, PAGE_SIZE, null);
+			Platform.runLater(() -> {
+				if (latestQuery.get() != query)
+					return;
+				results = similar;
+				resultsTable.getItems().setAll(similar.keySet());
+				more.setVisible(false);
+			});
 		});
-		try {
-			Thread dbThread = new Thread(fdcDB);
-			dbThread.start();
+	}
+
+	/**
+	 * offer the data types and categories of the FDC foods, to narrow searches.
+	 * the first choice of each, an empty string, stands for any
+	 */
+	private void prepareFacets() {
+		FDCFacets found = fdcDB.getData().getFacets();
 
-		} catch (Exception e) {
-			System.out.println("fdc treemap thread failed");
-//			e.printStackTrace();
+		dataTypeChoice.getItems().setAll("");
+		dataTypeChoice.getItems().addAll(found.getDataTypes());
+		dataTypeChoice.setConverter(facetConverter("any type", type -> type.replace('_', ' ')));
+
+		categoryChoice.getItems().setAll("");
+		categoryChoice.getItems().addAll(found.getCategories());
+		categoryChoice.setConverter(facetConverter("any category", found::getCategoryName));
+
+		for (ComboBox<String> choice : Arrays.asList(dataTypeChoice, categoryChoice)) {
+			choice.getSelectionModel().select(0);
+			choice.valueProperty().addListener((observable, oldValue, newValue) -> getAndDisplayResults());
 		}
+		facets.setVisible(true);
+	}
+
+	private static StringConverter<String> facetConverter(String any, Function<String, String> name) {
+		return new StringConverter<String>() {
+			@Override
+			public String toString(String value) {
+				return value == null || value.isEmpty() ? any : name.apply(value);
+			}
+
+			@Override
+			public String fromString(String text) {
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * @return the value chosen, or null if any value is chosen
+	 */
+	private static String chosen(ComboBox<String> choice) {
+		String value = choice.getValue();
+		return value == null || value.isEmpty() ? null : value;
 	}
 
+	/**
+	 * search for the current keywords, showing the first page of results
+	 */
 	@FXML
 	private void getAndDisplayResults() {
-		results = FDCSearch.getResults(keyword.getText());
-		resultsTable.getItems().setAll(results.keySet());
+		limit = PAGE_SIZE;
+		search(keyword.getText(), false);
+	}
+
+	// 'more' button action: repeat the last search, adding another page
+	@FXML
+	private void loadMore() {
+		limit += PAGE_SIZE;
+		search(searchText, true);
+	}
+
+	/**
+	 * search in the background for the given text. the results are shown only if
+	 * no newer search has been started by then; an older search still running is
+	 * abandoned.
+	 *
+	 * @param nextPage true if the search repeats the last one for more results.
+	 *                 as results come in the same order each time, only those
+	 *                 following the rows already shown are added to the table
+	 */
+	private void search(String text, boolean nextPage) {
+		searchDelay.stop();
+		long query = latestQuery.incrementAndGet();
+		int count = limit;
+		String dataType = chosen(dataTypeChoice);
+		String categoryID = chosen(categoryChoice);
+		searchText = text;
+		loadingPage = nextPage;
+
+		searcher.execute(() -> {
+			FDCSearchResults found;
+			try {
+				found = fdcDB.search(text, dataType, categoryID, count, () -> latestQuery.get() != query);
+			} catch (CancellationException e) {
+				return;
+			}
+
+			Platform.runLater(() -> {
+				if (latestQuery.get() != query)
+					return;
+				loadingPage = false;
+				results = found.getFoods();
+				ObservableList<Integer> shown = resultsTable.getItems();
+				List<Integer> ranked = new ArrayList<Integer>(results.keySet());
+				if (nextPage && shown.size() <= ranked.size() && shown.equals(ranked.subList(0, shown.size()))) {
+					shown.addAll(ranked.subList(shown.size(), ranked.size()));
+				} else {
+					Integer selected = selection;
+					shown.setAll(ranked);
+					if (selected != null && results.containsKey(selected))
+						resultsTable.getSelectionModel().select(selected);
+				}
+				more.setVisible(found.hasMore());
+				more.setText(String.format("%,d more", found.getTotal() - results.size()));
+				loadStatus.setVisible(found.isFilterIgnored());
+				loadStatus.setText("nutrient conditions are ignored in low memory mode");
+			});
+		});
+	}
+
+	/**
+	 * @return an executor starting a virtual thread for each search on a JVM which
+	 *         supports them, otherwise a pool of daemon threads
+	 */
+	private static ExecutorService newSearchExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(task -> {
+				Thread thread = new Thread(task, "fdc search");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
 	}
 
 	// OK button action
 	@FXML
 	private void passbackIngredient() throws Exception {
 		if (selection != null) {
-			Integer fdcID = results.get(selection);
-			mainApp.enterIngredientDetails(selection, fdcID.toString(), fdcDB.getNutrientSet(fdcID));
+			Integer fdcID = selection;
+			mainApp.enterIngredientDetails(results.get(fdcID), fdcID.toString(), fdcDB.getNutrientSet(fdcID));
 		}
 	}
 